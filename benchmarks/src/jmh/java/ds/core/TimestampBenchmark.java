@@ -0,0 +1,64 @@
+package ds.core;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Comparisons and merges of timestamps, which happen for every update log entry
+ * on every gossip round and query.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TimestampBenchmark {
+    @Param({"3", "16"})
+    private int dimension;
+
+    private Timestamp earlier;
+    private Timestamp later;
+    private Timestamp concurrent;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+
+        earlier = new Timestamp(dimension);
+        later = new Timestamp(dimension);
+        concurrent = new Timestamp(dimension);
+
+        for (int i = 0; i < dimension; ++i) {
+            int component = random.nextInt(1000);
+
+            earlier.set(i, component);
+            later.set(i, component + 1);
+            concurrent.set(i, i % 2 == 0 ? component + 1 : component - 1);
+        }
+    }
+
+    @Benchmark
+    public boolean isBeforeOrEqual() {
+        return earlier.isBeforeOrEqual(later);
+    }
+
+    @Benchmark
+    public boolean isAfter() {
+        return later.isAfter(earlier);
+    }
+
+    @Benchmark
+    public int compareToConcurrent() {
+        return concurrent.compareTo(earlier);
+    }
+
+    @Benchmark
+    public Timestamp copyAndMerge() {
+        Timestamp t = earlier.copy();
+        t.merge(concurrent);
+        return t;
+    }
+}
@@ -0,0 +1,16 @@
+package ds.frontend;
+
+import ds.client.RequestParameters;
+import ds.core.Timestamp;
+
+/**
+ * Gives the benchmarks access to the package private Request constructor.
+ */
+public class Requests {
+    private Requests() {
+    }
+
+    public static Request create(RequestParameters parameters, Timestamp timestamp) {
+        return new Request(parameters, timestamp);
+    }
+}
@@ -0,0 +1,42 @@
+package ds.movies;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Average ranking is computed by the client for every query response.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RankingCounterBenchmark {
+    @Param({"10", "1000", "100000"})
+    private int numberOfRankings;
+
+    private RankingCounter counter;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        counter = new RankingCounter();
+
+        for (int userId = 0; userId < numberOfRankings; ++userId) {
+            counter.setRanking(userId, (1 + random.nextInt(10)) / 2.0f);
+        }
+    }
+
+    @Benchmark
+    public float getAverageRanking() {
+        return counter.getAverageRanking();
+    }
+
+    @Benchmark
+    public boolean userHasRanked() {
+        return counter.userHasRanked(numberOfRankings / 2);
+    }
+}
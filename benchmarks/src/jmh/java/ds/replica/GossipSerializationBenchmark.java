@@ -0,0 +1,178 @@
+package ds.replica;
+
+import ds.client.RequestParameters;
+import ds.core.Timestamp;
+import ds.frontend.Request;
+import ds.frontend.Requests;
+import ds.replica.updatelog.UpdateLogEntry;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static ds.core.NetworkSimulator.NUMBER_OF_REPLICAS;
+
+/**
+ * Encoding and decoding gossip messages with the binary wire format, against default java serialization
+ * of the same entries as they were written before it. The size of each encoding per entry is printed during setup.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GossipSerializationBenchmark {
+    private static final int SENDER_ID = 0;
+    private static final long SENDER_INCARNATION = 1;
+
+    @Param({"1", "100", "1000"})
+    private int entriesPerMessage;
+
+    private GossipMessage message;
+
+    /*
+     * The classes of a gossip message as they were before the binary format, with every field written by default
+     * serialization and timestamps as a list of boxed integers. Timestamp itself can't be used for this as it now
+     * writes its components compactly even with default serialization.
+     */
+
+    private static class BaselineTimestamp implements Serializable {
+        private final List<Integer> list = new ArrayList<>();
+
+        BaselineTimestamp(Timestamp timestamp) {
+            for (int i = 0; i < NUMBER_OF_REPLICAS; ++i) {
+                list.add(timestamp.get(i));
+            }
+        }
+    }
+
+    private static class BaselineRequestParameters implements Serializable {
+        private final int movieId;
+        private final int userId;
+        private final float ranking;
+
+        BaselineRequestParameters(RequestParameters parameters) {
+            movieId = parameters.getMovieId();
+            userId = parameters.getUserId();
+            ranking = parameters.getRanking();
+        }
+    }
+
+    private static class BaselineRequest implements Serializable {
+        private final BaselineRequestParameters parameters;
+        private final BaselineTimestamp timestamp;
+        private final UUID uid;
+
+        BaselineRequest(Request request) {
+            parameters = new BaselineRequestParameters(request.getParameters());
+            timestamp = new BaselineTimestamp(request.getTimestamp());
+            uid = request.getUid();
+        }
+    }
+
+    private static class BaselineUpdateLogEntry implements Serializable {
+        private final BaselineTimestamp updateTimestamp;
+        private final int replicaId;
+        private final BaselineRequest updateRequest;
+
+        BaselineUpdateLogEntry(UpdateLogEntry entry) {
+            updateTimestamp = new BaselineTimestamp(entry.getUpdateTimestamp());
+            replicaId = entry.getReplicaId();
+            updateRequest = new BaselineRequest(entry.getUpdateRequest());
+        }
+    }
+
+    private static class BaselineGossipMessage implements Serializable {
+        private final int senderId;
+        private final List<BaselineUpdateLogEntry> updateLogEntries = new ArrayList<>();
+        private final BaselineTimestamp replicaTimestamp;
+
+        BaselineGossipMessage(int senderId, List<UpdateLogEntry> entries, Timestamp replicaTimestamp) {
+            this.senderId = senderId;
+            entries.forEach(entry -> updateLogEntries.add(new BaselineUpdateLogEntry(entry)));
+            this.replicaTimestamp = new BaselineTimestamp(replicaTimestamp);
+        }
+    }
+
+    /**
+     * The message as it was written before the binary format.
+     */
+    private BaselineGossipMessage javaSerializedMessage;
+
+    private byte[] binaryBytes;
+    private byte[] javaBytes;
+
+    private static byte[] serialize(Object object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(object);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return in.readObject();
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        Random random = new Random(42);
+        List<UpdateLogEntry> entries = new ArrayList<>(entriesPerMessage);
+        Timestamp previous = new Timestamp(NUMBER_OF_REPLICAS);
+
+        // A busy replica that has seen a few thousand updates from each of its peers.
+        for (int i = 0; i < NUMBER_OF_REPLICAS; ++i) {
+            previous.set(i, 5000 + random.nextInt(1000));
+        }
+
+        for (int i = 0; i < entriesPerMessage; ++i) {
+            RequestParameters parameters = new RequestParameters(
+                    random.nextInt(600), random.nextInt(190000), (1 + random.nextInt(10)) / 2.0f);
+
+            Timestamp update = previous.copy();
+            update.set(SENDER_ID, previous.get(SENDER_ID) + 1);
+
+            entries.add(new UpdateLogEntry(SENDER_ID, update, Requests.create(parameters, previous)));
+            previous = update;
+        }
+
+        message = new GossipMessage(SENDER_ID, SENDER_INCARNATION, entries, previous);
+        javaSerializedMessage = new BaselineGossipMessage(SENDER_ID, entries, previous);
+
+        binaryBytes = serialize(message);
+        javaBytes = serialize(javaSerializedMessage);
+
+        System.out.printf("%n%d entries: binary %d bytes (%.1f per entry), java serialization %d bytes (%.1f per entry)%n",
+                entriesPerMessage, binaryBytes.length, (double) binaryBytes.length / entriesPerMessage,
+                javaBytes.length, (double) javaBytes.length / entriesPerMessage);
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() throws IOException {
+        return serialize(message);
+    }
+
+    @Benchmark
+    public Object decodeBinary() throws IOException, ClassNotFoundException {
+        return deserialize(binaryBytes);
+    }
+
+    @Benchmark
+    public byte[] encodeJavaSerialization() throws IOException {
+        return serialize(javaSerializedMessage);
+    }
+
+    @Benchmark
+    public Object decodeJavaSerialization() throws IOException, ClassNotFoundException {
+        return deserialize(javaBytes);
+    }
+}
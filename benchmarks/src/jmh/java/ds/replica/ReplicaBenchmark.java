@@ -0,0 +1,86 @@
+package ds.replica;
+
+import ds.client.RequestParameters;
+import ds.core.Timestamp;
+import ds.frontend.Requests;
+import ds.replica.updatelog.UpdateLogEntry;
+import org.openjdk.jmh.annotations.*;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static ds.core.NetworkSimulator.NUMBER_OF_REPLICAS;
+
+/**
+ * A replica processing gossip from a peer which has accepted a batch of new ratings since its last gossip.
+ * Between invocations the third replica acknowledges everything so the update log stays at a steady size.
+ * Must be run from the repository root.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ReplicaBenchmark {
+    private static final int RECEIVER_ID = 1;
+    private static final int SENDER_ID = 0;
+    private static final int BYSTANDER_ID = 2;
+
+    private static final long SENDER_INCARNATION = 1;
+    private static final long BYSTANDER_INCARNATION = 2;
+
+    @Param({"1", "100", "1000"})
+    private int entriesPerMessage;
+
+    private Replica replica;
+    private Random random = new Random(42);
+
+    /**
+     * Number of updates the sender has accepted so far.
+     */
+    private int senderSequenceNumber;
+
+    private GossipMessage message;
+
+    private static Timestamp senderTimestampAt(int sequenceNumber) {
+        Timestamp timestamp = new Timestamp(NUMBER_OF_REPLICAS);
+        timestamp.set(SENDER_ID, sequenceNumber);
+        return timestamp;
+    }
+
+    @Setup(Level.Trial)
+    public void createReplica() throws RemoteException {
+        replica = new Replica(RECEIVER_ID);
+    }
+
+    @Setup(Level.Invocation)
+    public void createMessage() throws RemoteException {
+        // The bystander has caught up with everything sent so far, so previous entries are outdated.
+        replica.processGossipMessage(new GossipMessage(BYSTANDER_ID, BYSTANDER_INCARNATION, Collections.emptyList(),
+                senderTimestampAt(senderSequenceNumber)));
+
+        List<UpdateLogEntry> entries = new ArrayList<>(entriesPerMessage);
+
+        for (int i = 0; i < entriesPerMessage; ++i) {
+            RequestParameters parameters = new RequestParameters(random.nextInt(1000), 1, (1 + random.nextInt(10)) / 2.0f);
+
+            Timestamp previous = senderTimestampAt(senderSequenceNumber);
+            Timestamp update = senderTimestampAt(++senderSequenceNumber);
+
+            entries.add(new UpdateLogEntry(SENDER_ID, update, Requests.create(parameters, previous)));
+        }
+
+        message = new GossipMessage(SENDER_ID, SENDER_INCARNATION, entries, senderTimestampAt(senderSequenceNumber));
+    }
+
+    @Benchmark
+    public Replica processGossipMessage() throws RemoteException {
+        replica.processGossipMessage(message);
+        return replica;
+    }
+}
@@ -0,0 +1,57 @@
+package ds.replica;
+
+import ds.core.Timestamp;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static ds.core.NetworkSimulator.NUMBER_OF_REPLICAS;
+
+/**
+ * Loading the bundled movie-data, which happens once per JVM, and creating the value of each replica on top of it,
+ * compared with loading a checkpoint of the same value as a restarted replica does. The checkpoint only holds the
+ * ratings the replica changed, none here, so it's read on top of the same shared dataset.
+ * Must be run from the repository root.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReplicaValueBenchmark {
+    private File checkpointFile;
+
+    @Setup
+    public void writeCheckpoint() throws IOException {
+        checkpointFile = File.createTempFile("checkpoint", ".bin");
+
+        new Checkpoint(0, new Timestamp(NUMBER_OF_REPLICAS), new Timestamp(NUMBER_OF_REPLICAS), new ReplicaValue(),
+                new ExecutedOperations(Replica.EXECUTED_OPERATION_EXPIRY, Replica.EXECUTED_OPERATION_MAX_AGE),
+                Collections.emptyList(), Collections.emptyList())
+                .writeTo(checkpointFile);
+    }
+
+    @TearDown
+    public void deleteCheckpoint() {
+        checkpointFile.delete();
+    }
+
+    @Benchmark
+    public BaseDataset loadBaseDataset() {
+        return BaseDataset.load();
+    }
+
+    @Benchmark
+    public ReplicaValue construct() {
+        return new ReplicaValue();
+    }
+
+    @Benchmark
+    public Checkpoint loadCheckpoint() throws IOException {
+        return Checkpoint.readFrom(checkpointFile);
+    }
+}
@@ -0,0 +1,159 @@
+package ds.replica.updatelog;
+
+import ds.client.RequestParameters;
+import ds.core.Timestamp;
+import ds.frontend.Requests;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Update log operations at different log sizes. Entries are created by replica 0
+ * one after another, so entry i has update timestamp (i, 0, 0).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UpdateLogBenchmark {
+    private static final int DIMENSION = 3;
+
+    /**
+     * Number of new entries merged per invocation of the add benchmark, about one gossip message.
+     */
+    private static final int ENTRIES_PER_MERGE = 100;
+
+    private static Timestamp timestampAt(int sequenceNumber) {
+        Timestamp timestamp = new Timestamp(DIMENSION);
+        timestamp.set(0, sequenceNumber);
+        return timestamp;
+    }
+
+    private static UpdateLogEntry createEntry(int sequenceNumber) {
+        RequestParameters parameters = new RequestParameters(sequenceNumber, 1, 4.0f);
+
+        return new UpdateLogEntry(0, timestampAt(sequenceNumber),
+                Requests.create(parameters, timestampAt(sequenceNumber - 1)));
+    }
+
+    /**
+     * A log of size entries, entries to merge into it, and a timestamp table in which every replica
+     * has seen half of the log.
+     */
+    abstract static class Entries {
+        int size;
+
+        List<UpdateLogEntry> existing;
+        List<UpdateLogEntry> incoming;
+        List<Timestamp> timestampTable;
+
+        void create(int size) {
+            this.size = size;
+
+            existing = new ArrayList<>(size);
+            for (int i = 1; i <= size; ++i) {
+                existing.add(createEntry(i));
+            }
+
+            incoming = new ArrayList<>(ENTRIES_PER_MERGE);
+            for (int i = 1; i <= ENTRIES_PER_MERGE; ++i) {
+                incoming.add(createEntry(size + i));
+            }
+
+            timestampTable = new ArrayList<>();
+            for (int i = 0; i < DIMENSION; ++i) {
+                timestampTable.add(timestampAt(size / 2));
+            }
+        }
+
+        UpdateLog createLog() {
+            UpdateLog log = new UpdateLog();
+            existing.forEach(log::add);
+            return log;
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class SharedLogEntries extends Entries {
+        @Param({"1000", "10000", "100000", "1000000"})
+        int logSize;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            create(logSize);
+        }
+    }
+
+    /**
+     * Benchmarks that change the log need a fresh one for every invocation, and building it takes far longer
+     * than what is measured. So they leave out the largest log, which would take most of a run to build.
+     */
+    @State(Scope.Benchmark)
+    public static class FreshLogEntries extends Entries {
+        @Param({"1000", "10000", "100000"})
+        int logSize;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            create(logSize);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class SharedLog {
+        UpdateLog log;
+
+        @Setup(Level.Trial)
+        public void setup(SharedLogEntries entries) {
+            log = entries.createLog();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class FreshLog {
+        UpdateLog log;
+
+        @Setup(Level.Invocation)
+        public void setup(FreshLogEntries entries) {
+            log = entries.createLog();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ENTRIES_PER_MERGE)
+    public UpdateLog add(FreshLogEntries entries, FreshLog fresh) {
+        entries.incoming.forEach(fresh.log::add);
+        return fresh.log;
+    }
+
+    @Benchmark
+    public UpdateLog addDuplicate(SharedLogEntries entries, SharedLog shared) {
+        shared.log.add(entries.existing.get(entries.size - 1));
+        return shared.log;
+    }
+
+    /**
+     * Applies the first half of the log, the value timestamp advancing after each entry like a replica's would.
+     */
+    @Benchmark
+    public Timestamp pollStableEntries(FreshLogEntries entries, FreshLog fresh) {
+        Timestamp valueTimestamp = new Timestamp(DIMENSION);
+        UpdateLogEntry entry;
+
+        while (valueTimestamp.get(0) < entries.size / 2
+                && (entry = fresh.log.pollStableEntry(valueTimestamp)) != null) {
+            valueTimestamp.merge(entry.getUpdateTimestamp());
+        }
+
+        return valueTimestamp;
+    }
+
+    @Benchmark
+    public UpdateLog removeOutdatedEntries(FreshLogEntries entries, FreshLog fresh) {
+        fresh.log.removeOutdatedEntries(entries.timestampTable);
+        return fresh.log;
+    }
+}
@@ -4,7 +4,7 @@ import ds.frontend.FrontEnd;
 import ds.frontend.FrontEndApi;
 import ds.movies.Movie;
 import ds.movies.MovieDetails;
-import ds.movies.RankingCounter;
+import ds.movies.RankingSummary;
 import ds.replica.ReplicaStatus;
 
 import java.rmi.RemoteException;
@@ -55,7 +55,7 @@ public class Client {
      */
     private void printQueryResultsToScreen(MovieDetails movieDetails, int userId) {
         Movie movie = movieDetails.getMovie();
-        RankingCounter rankings = movieDetails.getRankingCounter();
+        RankingSummary rankings = movieDetails.getRankingSummary();
 
         System.out.println("Movie Name:" + movie.getName());
         System.out.println("Released:" + movie.getYear());
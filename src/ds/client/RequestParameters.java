@@ -1,7 +1,13 @@
 package ds.client;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 
+import static ds.core.Varints.readSignedVarInt;
+import static ds.core.Varints.writeSignedVarInt;
+
 /**
  * Metadata associated with each request made to a network.
  */
@@ -12,6 +18,11 @@ public class RequestParameters implements Serializable {
 
     private float ranking;
 
+    /**
+     * Whether a query should return every user's ranking rather than a summary.
+     */
+    private boolean includeAllRankings;
+
     public RequestParameters(int userId, int movieId) {
         this.userId = userId;
         this.movieId = movieId;
@@ -22,6 +33,16 @@ public class RequestParameters implements Serializable {
         this.ranking = ranking;
     }
 
+    /**
+     * Parameters of a query which returns every user's ranking of the movie, not just a summary.
+     */
+    public static RequestParameters queryForAllRankings(int userId, int movieId) {
+        RequestParameters parameters = new RequestParameters(userId, movieId);
+        parameters.includeAllRankings = true;
+
+        return parameters;
+    }
+
     public int getMovieId() {
         return movieId;
     }
@@ -33,4 +54,25 @@ public class RequestParameters implements Serializable {
     public float getRanking() {
         return ranking;
     }
+
+    public boolean isIncludingAllRankings() {
+        return includeAllRankings;
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        writeSignedVarInt(out, userId);
+        writeSignedVarInt(out, movieId);
+        out.writeFloat(ranking);
+        out.writeBoolean(includeAllRankings);
+    }
+
+    public static RequestParameters readFrom(DataInput in) throws IOException {
+        int userId = readSignedVarInt(in);
+        int movieId = readSignedVarInt(in);
+
+        RequestParameters parameters = new RequestParameters(userId, movieId, in.readFloat());
+        parameters.includeAllRankings = in.readBoolean();
+
+        return parameters;
+    }
 }
@@ -7,6 +7,7 @@ import ds.replica.Replica;
 import ds.replica.ReplicaApi;
 import ds.replica.ReplicaStatus;
 
+import java.io.File;
 import java.rmi.AlreadyBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
@@ -14,7 +15,9 @@ import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Timer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import static ds.core.Utils.assertCondition;
 
@@ -40,6 +43,14 @@ public class NetworkSimulator {
      * - Whether a replica will always provide consistent data to the frontend
      */
     private static final boolean doFrontendTests = false;
+    /**
+     * Whether replicas keep a write ahead log on disk, so a restarted network recovers the updates it had.
+     */
+    private static final boolean persistReplicas = false;
+    /**
+     * Directory the replicas keep their write ahead logs in when persistReplicas is set.
+     */
+    private static final File REPLICA_DATA_DIRECTORY = new File("replica-data");
     /**
      * How often a replica will gossip.
      */
@@ -95,8 +106,8 @@ public class NetworkSimulator {
 
         safeSleep(GOSSIP_PERIOD + 2500); // wait for gossip to update everyone
 
-        replicas.get(0).setReplicaStatus(ReplicaStatus.OFFLINE);
-        replicas.get(1).setReplicaStatus(ReplicaStatus.OFFLINE);
+        serviceApi.changeReplicaStatus(0, ReplicaStatus.OFFLINE);
+        serviceApi.changeReplicaStatus(1, ReplicaStatus.OFFLINE);
 
         assertCondition(serviceApi.query(new RequestParameters(1, 47)).getUserRanking() == 4.5f,
                 "gossip message propagate updates");
@@ -104,17 +115,17 @@ public class NetworkSimulator {
         assertCondition(serviceApi.submit(new RequestParameters(30, 100, 2.5f)),
                 "gossip test accepted submit");
 
-        replicas.get(0).setReplicaStatus(ReplicaStatus.ACTIVE);
-        replicas.get(1).setReplicaStatus(ReplicaStatus.ACTIVE);
+        serviceApi.changeReplicaStatus(0, ReplicaStatus.ACTIVE);
+        serviceApi.changeReplicaStatus(1, ReplicaStatus.ACTIVE);
 
         safeSleep(GOSSIP_PERIOD + 2500); // wait for gossip to update everyone
-        replicas.get(2).setReplicaStatus(ReplicaStatus.OFFLINE);
+        serviceApi.changeReplicaStatus(2, ReplicaStatus.OFFLINE);
 
         assertCondition(serviceApi.query(new RequestParameters(30, 100)).getUserRanking() == 2.5f,
                 "gossip message propagates updates #2");
 
 
-        replicas.get(2).setReplicaStatus(ReplicaStatus.ACTIVE);
+        serviceApi.changeReplicaStatus(2, ReplicaStatus.ACTIVE);
     }
 
     private static void doMiniStressTest(FrontEnd serviceApi, Map<Integer, ReplicaApi> replicas) throws RemoteException {
@@ -125,15 +136,15 @@ public class NetworkSimulator {
         assertCondition(serviceApi.update(new RequestParameters(1, 2, 5.0f)),
                 "accepted s.t. update #3");
 
-        replicas.get(1).setReplicaStatus(ReplicaStatus.OVERLOADED);
+        serviceApi.changeReplicaStatus(1, ReplicaStatus.OVERLOADED);
 
         safeSleep(1000);
 
         assertCondition(serviceApi.query(new RequestParameters(30, 100)).getUserRanking() == 5.0f,
                 "stress test checkpoint #1");
 
-        replicas.get(1).setReplicaStatus(ReplicaStatus.OFFLINE);
-        replicas.get(0).setReplicaStatus(ReplicaStatus.OFFLINE);
+        serviceApi.changeReplicaStatus(1, ReplicaStatus.OFFLINE);
+        serviceApi.changeReplicaStatus(0, ReplicaStatus.OFFLINE);
 
         assertCondition(serviceApi.update(new RequestParameters(1, 47, 2.0f)),
                 "accepted s.t. update #4");
@@ -144,9 +155,11 @@ public class NetworkSimulator {
 
         safeSleep(1000);
 
+        // Every replica ties once the picker is reset, so the query goes to replica 0 or 1, which missed the
+        // updates above and must catch up.
         serviceApi.resetReplicaPickerState();
-        replicas.get(1).setReplicaStatus(ReplicaStatus.ACTIVE);
-        replicas.get(0).setReplicaStatus(ReplicaStatus.ACTIVE);
+        serviceApi.changeReplicaStatus(1, ReplicaStatus.ACTIVE);
+        serviceApi.changeReplicaStatus(0, ReplicaStatus.ACTIVE);
 
         assertCondition(serviceApi.query(new RequestParameters(1, 2)).getUserRanking() == 2.0f,
                 "stress test checkpoint #2");
@@ -160,12 +173,14 @@ public class NetworkSimulator {
         doTestsWithSubmit(serviceApi, replicas);
         doTestsWithGossipMessages(serviceApi, replicas);
 
-        serviceApi.resetReplicaPickerState(); // so we can reason about what to turn off during mini-stress test.
+        // Forget how the replicas performed in the earlier tests, so the mini-stress test picks
+        // replicas only by what we turn off and which ties go to the lower id.
+        serviceApi.resetReplicaPickerState();
 
         doMiniStressTest(serviceApi, replicas);
 
-        for (ReplicaApi replicaApi : replicas.values()) {
-            replicaApi.setReplicaStatus(ReplicaStatus.ACTIVE);
+        for (int replicaId : replicas.keySet()) {
+            serviceApi.changeReplicaStatus(replicaId, ReplicaStatus.ACTIVE);
         }
 
         System.out.println(" --- FINISHED ALL TESTS ---");
@@ -191,17 +206,20 @@ public class NetworkSimulator {
     }
 
     private Map<Integer, ReplicaApi> launchReplicas() throws RemoteException, AlreadyBoundException {
-        Timer t = new Timer();
+        // A thread per replica so a replica that is slow to gossip doesn't delay the others.
+        ScheduledExecutorService gossipScheduler = Executors.newScheduledThreadPool(NUMBER_OF_REPLICAS);
         Map<Integer, ReplicaApi> replicas = new HashMap<>();
 
         for (int i = 0; i < NUMBER_OF_REPLICAS; ++i) {
-            Replica replica = new Replica(i);
+            Replica replica = persistReplicas
+                    ? new Replica(i, new File(REPLICA_DATA_DIRECTORY, "replica-" + i))
+                    : new Replica(i);
 
             ReplicaApi replicaStub = (ReplicaApi) UnicastRemoteObject.exportObject(replica, 0);
 
             registry.bind("replica-" + i, replicaStub);
 
-            t.scheduleAtFixedRate(replica, GOSSIP_PERIOD, GOSSIP_PERIOD);
+            gossipScheduler.scheduleAtFixedRate(replica, GOSSIP_PERIOD, GOSSIP_PERIOD, TimeUnit.MILLISECONDS);
 
             replicas.put(i, replica);
             System.out.printf("Launched replica %d\n", i);
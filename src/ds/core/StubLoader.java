@@ -8,15 +8,58 @@ import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Lazy loader for ReplicaApi's based on an id.
+ * <p>
+ * The status of each loaded replica is cached and refreshed by a background heartbeat, so using a stub
+ * doesn't cost a round trip to ask for its status first. A caller whose request to a replica fails should
+ * refresh that replica's status straight away, and a status changed through changeStatus is cached at once.
+ * Asking a replica for its status never changes it.
+ * <p>
+ * The stubs, their statuses and the heartbeat are shared by every stub loader in the JVM. So however many replicas
+ * and frontends run in it, each replica is asked for its status once a refresh rather than once by each of them.
  */
 public class StubLoader {
-    private Map<Integer, ReplicaApi> replicaStubs = new HashMap<>();
-    private Map<Integer, ReplicaStatus> replicaStatuses = new HashMap<>();
+    /**
+     * How often the status of each loaded replica is refreshed.
+     */
+    public static final long STATUS_REFRESH_PERIOD = 1000; // milliseconds
+
+    /**
+     * How long a call to a replica waits for its answer before failing with a RemoteException,
+     * so a replica that hangs can't hold the caller's thread for good.
+     */
+    public static final long RESPONSE_TIMEOUT = 10 * 1000; // milliseconds
+
+    private static final String RESPONSE_TIMEOUT_PROPERTY = "sun.rmi.transport.tcp.responseTimeout";
+
+    static {
+        // RMI reads this once, when the first call is made, and every call to a replica goes through a stub loader.
+        // Left alone if it was set on the command line.
+        if (System.getProperty(RESPONSE_TIMEOUT_PROPERTY) == null) {
+            System.setProperty(RESPONSE_TIMEOUT_PROPERTY, Long.toString(RESPONSE_TIMEOUT));
+        }
+    }
+
+    private static final Map<Integer, ReplicaApi> replicaStubs = new ConcurrentHashMap<>();
+    private static final Map<Integer, ReplicaStatus> replicaStatuses = new ConcurrentHashMap<>();
+
+    private static final ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "stub-loader-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        heartbeat.scheduleWithFixedDelay(StubLoader::refreshStatuses,
+                STATUS_REFRESH_PERIOD, STATUS_REFRESH_PERIOD, TimeUnit.MILLISECONDS);
+    }
 
     private Registry registry;
 
@@ -32,31 +75,59 @@ public class StubLoader {
         return (ReplicaApi) registry.lookup(formatReplicaRegistryIdentifier(replicaId));
     }
 
+    private ReplicaApi loadedReplicaStub(int replicaId) throws RemoteException {
+        try {
+            if (!replicaStubs.containsKey(replicaId)) {
+                replicaStubs.putIfAbsent(replicaId, loadReplicaStub(replicaId));
+            }
+
+            return replicaStubs.get(replicaId);
+        } catch (NotBoundException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Asks a loaded replica for its status. A replica that can't be reached is treated as offline.
+     */
+    private static ReplicaStatus requestStatus(int replicaId) {
+        ReplicaStatus replicaStatus;
+
+        try {
+            replicaStatus = replicaStubs.get(replicaId).requestStatus();
+        } catch (RemoteException e) {
+            replicaStatus = ReplicaStatus.OFFLINE;
+        }
+
+        replicaStatuses.put(replicaId, replicaStatus);
+        return replicaStatus;
+    }
+
+    private static void refreshStatuses() {
+        replicaStubs.keySet().forEach(StubLoader::requestStatus);
+    }
+
     /**
      * Lazy loads a replica with a given id
      *
      * @param replicaId replica id to load
      * @return Replica stub to interact with replica
      * @throws RemoteException
-     * @throws NotActiveException if the replica is offline
+     * @throws NotActiveException if the replica is offline, as of the last time its status was refreshed
      */
     public ReplicaApi getReplicaStub(int replicaId) throws RemoteException, NotActiveException {
-        try {
-            replicaStubs.putIfAbsent(replicaId, loadReplicaStub(replicaId));
+        ReplicaApi replicaStub = loadedReplicaStub(replicaId);
 
-            ReplicaApi replica = replicaStubs.get(replicaId);
-            ReplicaStatus replicaStatus = replica.requestStatus();
-
-            replicaStatuses.put(replicaId, replicaStatus);
-
-            if (replicaStatus == ReplicaStatus.OFFLINE) {
-                throw new NotActiveException("Replica " + replicaId + " is offline");
-            }
+        ReplicaStatus replicaStatus = replicaStatuses.get(replicaId);
+        if (replicaStatus == null) {
+            replicaStatus = requestStatus(replicaId);
+        }
 
-            return replica;
-        } catch (NotBoundException e) {
-            throw new RuntimeException(e);
+        if (replicaStatus == ReplicaStatus.OFFLINE) {
+            throw new NotActiveException("Replica " + replicaId + " is offline");
         }
+
+        return replicaStub;
     }
 
     public ReplicaApi getCachedReplica(int replicaId) {
@@ -72,4 +143,35 @@ public class StubLoader {
     public ReplicaStatus getCachedStatusFor(int replicaId) {
         return replicaStatuses.get(replicaId);
     }
+
+    /**
+     * Changes the status of a replica, whatever its status is now, and caches the new status straight away
+     * so we don't have to wait for the heartbeat to see it.
+     *
+     * @param replicaId
+     * @param status new status of the replica
+     * @throws RemoteException if the replica can't be reached
+     */
+    public void changeStatus(int replicaId, ReplicaStatus status) throws RemoteException {
+        try {
+            loadedReplicaStub(replicaId).setReplicaStatus(status);
+        } finally {
+            requestStatus(replicaId);
+        }
+    }
+
+    /**
+     * Refreshes the cached status of a replica now, eg after a request to it failed
+     * or when a stale status would be costly.
+     *
+     * @param replicaId
+     * @return its status now
+     */
+    public ReplicaStatus refreshStatus(int replicaId) {
+        if (!replicaStubs.containsKey(replicaId)) {
+            return ReplicaStatus.OFFLINE;
+        }
+
+        return requestStatus(replicaId);
+    }
 }
@@ -1,9 +1,10 @@
 package ds.core;
 
-import java.io.Serializable;
-import java.util.ArrayList;
+import java.io.*;
 import java.util.Arrays;
-import java.util.List;
+
+import static ds.core.NetworkSimulator.NUMBER_OF_REPLICAS;
+import static ds.core.Varints.*;
 
 /**
  * The timestamp is used within the distributed network to describe the state of the network in terms of num. of updatelog
@@ -12,49 +13,89 @@ import java.util.List;
  * Timestamps are used primary for consistency
  */
 public class Timestamp implements Comparable<Timestamp>, Serializable {
-    private List<Integer> list;
+    /**
+     * Result of comparing two timestamps under the partial order of vector clocks.
+     */
+    public enum Ordering {
+        BEFORE,
+        AFTER,
+        EQUAL,
+        CONCURRENT
+    }
+
+    /**
+     * Components are written by hand in writeObject, see below.
+     */
+    private transient int[] components;
 
     public Timestamp(int capacity) {
-        list = new ArrayList<>(capacity);
-        for (int i = 0; i < capacity; ++i) {
-            list.add(i, 0);
-        }
+        components = new int[capacity];
+    }
+
+    private Timestamp(int[] components) {
+        this.components = components;
     }
 
     public int getDimension() {
-        return list.size();
+        return components.length;
     }
 
     public int get(int i) {
-        return list.get(i);
+        return components[i];
     }
 
     public void set(int i, int k) {
-        list.set(i, k);
+        components[i] = k;
     }
 
-    public boolean isAfter(Timestamp timestamp) {
-        for (int i = 0; i < list.size(); ++i) {
-            if (list.get(i) > timestamp.get(i)) {
-                return true;
+    /**
+     * Compares every component in a single pass.
+     *
+     * @param timestamp to compare against
+     * @return how this timestamp is ordered relative to timestamp
+     */
+    public Ordering compare(Timestamp timestamp) {
+        int[] other = timestamp.components;
+        boolean anyLess = false;
+        boolean anyGreater = false;
+
+        for (int i = 0; i < components.length; ++i) {
+            if (components[i] < other[i]) {
+                anyLess = true;
+            } else if (components[i] > other[i]) {
+                anyGreater = true;
             }
         }
 
-        return false;
+        if (anyLess && anyGreater) {
+            return Ordering.CONCURRENT;
+        } else if (anyGreater) {
+            return Ordering.AFTER;
+        } else if (anyLess) {
+            return Ordering.BEFORE;
+        } else {
+            return Ordering.EQUAL;
+        }
     }
 
-    private boolean isEqual(Timestamp timestamp) {
-        for (int i = 0; i < list.size(); ++i) {
-            if (list.get(i) != timestamp.get(i)) {
-                return false;
+    /**
+     * @param timestamp
+     * @return whether any component of this is greater than the same component of timestamp
+     */
+    public boolean isAfter(Timestamp timestamp) {
+        int[] other = timestamp.components;
+
+        for (int i = 0; i < components.length; ++i) {
+            if (components[i] > other[i]) {
+                return true;
             }
         }
 
-        return true;
+        return false;
     }
 
-    private boolean isBefore(Timestamp timestamp) {
-        return !isAfter(timestamp);
+    private boolean isEqual(Timestamp timestamp) {
+        return Arrays.equals(components, timestamp.components);
     }
 
     /**
@@ -63,19 +104,25 @@ public class Timestamp implements Comparable<Timestamp>, Serializable {
      * @return this <= timestamp
      */
     public boolean isBeforeOrEqual(Timestamp timestamp) {
-        return isBefore(timestamp) || isEqual(timestamp);
+        return !isAfter(timestamp);
     }
 
+    /**
+     * Merges t into this timestamp in place, taking the component-wise maximum.
+     * @param t
+     */
     public void merge(Timestamp t) {
-        for (int i = 0; i < list.size(); ++i) {
-            list.set(i, Math.max(list.get(i), t.list.get(i)));
+        int[] other = t.components;
+
+        for (int i = 0; i < components.length; ++i) {
+            if (other[i] > components[i]) {
+                components[i] = other[i];
+            }
         }
     }
 
     public Timestamp copy() {
-        Timestamp t = new Timestamp(list.size());
-        t.merge(this);
-        return t;
+        return new Timestamp(components.clone());
     }
 
     @Override
@@ -84,23 +131,94 @@ public class Timestamp implements Comparable<Timestamp>, Serializable {
             return false;
         }
 
-        return this.compareTo((Timestamp) t) == 0;
+        return isEqual((Timestamp) t);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(components);
     }
 
     @Override
     public int compareTo(Timestamp timestamp) {
-        if (isEqual(timestamp)) {
-            return 0;
-        } else if (isAfter(timestamp)) {
-            return 1;
-        } else {
-            return -1;
+        switch (compare(timestamp)) {
+            case EQUAL:
+                return 0;
+            case BEFORE:
+                return -1;
+            default:
+                return 1; // after or concurrent, ie some component is ahead.
+        }
+    }
+
+    /**
+     * Writes the dimension followed by each component as a varint.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        writeVarInt(out, components.length);
+
+        for (int component : components) {
+            writeVarInt(out, component);
+        }
+    }
+
+    /**
+     * Reads a timestamp written by writeTo(DataOutput).
+     * @throws StreamCorruptedException if its dimension isn't the number of replicas, so a corrupt or hostile
+     *                                  dimension can't make us allocate a huge array
+     */
+    public static Timestamp readFrom(DataInput in) throws IOException {
+        int dimension = readVarInt(in);
+        if (dimension != NUMBER_OF_REPLICAS) {
+            throw new StreamCorruptedException("timestamp has dimension " + dimension
+                    + " but there are " + NUMBER_OF_REPLICAS + " replicas");
+        }
+
+        int[] components = new int[dimension];
+
+        for (int i = 0; i < components.length; ++i) {
+            components[i] = readVarInt(in);
+        }
+
+        return new Timestamp(components);
+    }
+
+    /**
+     * Writes each component as its difference from base, which is a single byte when they are close.
+     * The dimension is not written, it must be the same as base.
+     */
+    public void writeTo(DataOutput out, Timestamp base) throws IOException {
+        for (int i = 0; i < components.length; ++i) {
+            writeSignedVarInt(out, components[i] - base.components[i]);
         }
     }
 
+    public static Timestamp readFrom(DataInput in, Timestamp base) throws IOException {
+        int[] components = new int[base.components.length];
+
+        for (int i = 0; i < components.length; ++i) {
+            components[i] = base.components[i] + readSignedVarInt(in);
+        }
+
+        return new Timestamp(components);
+    }
+
+    /**
+     * Timestamps are sent with every request and gossip entry, so they are written in the
+     * binary form above rather than as a boxed list.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        writeTo(out);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        components = readFrom(in).components;
+    }
+
     @Override
     public String toString() {
-        return Arrays.toString(list.toArray());
+        return Arrays.toString(components);
     }
 }
-
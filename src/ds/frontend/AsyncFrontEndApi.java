@@ -0,0 +1,58 @@
+package ds.frontend;
+
+import ds.client.RequestParameters;
+import ds.movies.MovieDetails;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non blocking version of FrontEndApi for clients running in the same process as the frontend,
+ * so one client can have many requests in flight at once.
+ * <p>
+ * A request depends on every response the frontend has received before it's made. So for one request to
+ * see the effect of another, make it once the other's future has completed (eg with thenCompose),
+ * requests made whilst others are still in flight may be answered before them.
+ * <p>
+ * Futures fail with a CompletionException wrapping the RemoteException the blocking version would throw,
+ * including when the replicas don't answer a mutation in time, which may still be applied.
+ */
+public interface AsyncFrontEndApi {
+    /**
+     * @param parameters of the request
+     * @return details about the movie, including ratings, genres, name, ...
+     */
+    CompletableFuture<MovieDetails> queryAsync(RequestParameters parameters);
+
+    /**
+     * @param parameters of the request
+     * @return whether the update was a success
+     */
+    CompletableFuture<Boolean> updateAsync(RequestParameters parameters);
+
+    /**
+     * You cannot override an existing rating.
+     *
+     * @param parameters of the request
+     * @return whether the submission was a success
+     */
+    CompletableFuture<Boolean> submitAsync(RequestParameters parameters);
+
+    /**
+     * @param parameters of each query
+     * @return details about each movie in the same order, null for any movie that doesn't exist
+     */
+    CompletableFuture<List<MovieDetails>> queryBatchAsync(List<RequestParameters> parameters);
+
+    /**
+     * @param parameters of each update
+     * @return whether each update was a success, in the same order, null for any that may still be applied
+     */
+    CompletableFuture<List<Boolean>> updateBatchAsync(List<RequestParameters> parameters);
+
+    /**
+     * @param parameters of each submission
+     * @return whether each submission was a success, in the same order, null for any that may still be applied
+     */
+    CompletableFuture<List<Boolean>> submitBatchAsync(List<RequestParameters> parameters);
+}
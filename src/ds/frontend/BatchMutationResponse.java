@@ -0,0 +1,33 @@
+package ds.frontend;
+
+import ds.core.Timestamp;
+
+import java.io.Serializable;
+
+/**
+ * Response given to a frontend after a batch of mutation requests.
+ */
+public class BatchMutationResponse implements Serializable {
+    /**
+     * Whether each request in the batch was a success, in the same order
+     */
+    private boolean[] successes;
+
+    /**
+     * New frontend timestamp, covering every successful request in the batch
+     */
+    private Timestamp timestamp;
+
+    public BatchMutationResponse(Timestamp timestamp, boolean[] successes) {
+        this.timestamp = timestamp;
+        this.successes = successes;
+    }
+
+    public Timestamp getTimestamp() {
+        return timestamp;
+    }
+
+    boolean isSuccess(int i) {
+        return successes[i];
+    }
+}
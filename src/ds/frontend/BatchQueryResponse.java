@@ -0,0 +1,35 @@
+package ds.frontend;
+
+import ds.core.Timestamp;
+import ds.movies.MovieDetails;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Response given to the frontend for a batch of query requests.
+ */
+public class BatchQueryResponse implements Serializable {
+    /**
+     * New frontend timestamp
+     */
+    private Timestamp timestamp;
+
+    /**
+     * Data for each query in the batch, in the same order, null if its movie doesn't exist
+     */
+    private List<MovieDetails> rankings;
+
+    public BatchQueryResponse(Timestamp timestamp, List<MovieDetails> movieDetails) {
+        this.timestamp = timestamp;
+        this.rankings = movieDetails;
+    }
+
+    public Timestamp getTimestamp() {
+        return timestamp;
+    }
+
+    List<MovieDetails> getMovieDetails() {
+        return rankings;
+    }
+}
@@ -0,0 +1,51 @@
+package ds.frontend;
+
+import ds.client.RequestParameters;
+import ds.core.Timestamp;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Many requests of the same kind made to a replica in one call.
+ * Every request in the batch shares the same timestamp, so it's only sent once,
+ * but each has its own uid and succeeds or fails on its own.
+ */
+public class BatchRequest implements Serializable {
+    /**
+     * Timestamp sent by the frontend, shared by every request in the batch.
+     */
+    private Timestamp timestamp;
+
+    private List<Request> requests;
+
+    BatchRequest(List<RequestParameters> parameters, Timestamp timestamp) {
+        this(parameters, timestamp, 0);
+    }
+
+    /**
+     * @param recipients bit set of the replicas the batch is sent to, see Request
+     */
+    BatchRequest(List<RequestParameters> parameters, Timestamp timestamp, int recipients) {
+        this.timestamp = timestamp;
+
+        requests = new ArrayList<>(parameters.size());
+        for (RequestParameters requestParameters : parameters) {
+            requests.add(new Request(requestParameters, timestamp, recipients));
+        }
+    }
+
+    public Timestamp getTimestamp() {
+        return timestamp;
+    }
+
+    public List<Request> getRequests() {
+        return Collections.unmodifiableList(requests);
+    }
+
+    public int size() {
+        return requests.size();
+    }
+}
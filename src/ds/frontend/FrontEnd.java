@@ -6,9 +6,12 @@ import ds.movies.MovieDetails;
 import ds.replica.ReplicaApi;
 import ds.replica.ReplicaStatus;
 
-import java.io.NotActiveException;
 import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static ds.core.NetworkSimulator.NUMBER_OF_REPLICAS;
 
@@ -16,82 +19,450 @@ import static ds.core.NetworkSimulator.NUMBER_OF_REPLICAS;
  * Frontend of a distributed network.
  * Contains only required functionality for a DS with a single frontend.
  */
-public class FrontEnd implements FrontEndApi {
+public class FrontEnd implements FrontEndApi, AsyncFrontEndApi {
+    /**
+     * By default mutations are sent to 2 replicas, so we can handle 1 fault in the network,
+     * and succeed as soon as 1 of them accepts.
+     */
+    public static final int DEFAULT_MUTATION_REPLICAS = 2;
+    public static final int DEFAULT_MUTATION_QUORUM = 1;
+
+    /**
+     * How long a mutation waits for its quorum of replicas to answer.
+     */
+    private static final long MUTATION_TIMEOUT = 5000; // milliseconds
+
+    /**
+     * Calls to replicas block a thread until they're answered, this bounds how many are made at once.
+     * Any further requests wait in line rather than each getting a thread.
+     */
+    private static final int REQUEST_THREADS = 32;
+
     private ReplicaPicker replicaPicker;
 
     private Timestamp feTimestamp = new Timestamp(NUMBER_OF_REPLICAS);
 
+    /**
+     * Answers queries for hot movies without contacting a replica, as long as the result is up to date enough.
+     */
+    private QueryCache queryCache = new QueryCache();
+
+    private int mutationReplicas;
+
+    private int mutationQuorum;
+
+    /**
+     * Makes the calls to replicas for every request. A mutation is sent to all of its replicas at once,
+     * so it takes as long as the slowest rather than the sum of them.
+     */
+    private ExecutorService requestExecutor;
+
     public FrontEnd() throws RemoteException {
+        this(DEFAULT_MUTATION_REPLICAS, DEFAULT_MUTATION_QUORUM);
+    }
+
+    /**
+     * @param mutationReplicas number of replicas each mutation is sent to
+     * @param mutationQuorum   number of them that must accept it before it succeeds
+     * @throws RemoteException
+     */
+    public FrontEnd(int mutationReplicas, int mutationQuorum) throws RemoteException {
+        if (mutationQuorum < 1 || mutationQuorum > mutationReplicas) {
+            throw new IllegalArgumentException("quorum must be between 1 and the number of replicas");
+        }
+
+        this.mutationReplicas = mutationReplicas;
+        this.mutationQuorum = mutationQuorum;
+
         replicaPicker = new ReplicaPicker();
+
+        requestExecutor = Executors.newFixedThreadPool(REQUEST_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "frontend-request");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
-    private Request createRequestFromParameters(RequestParameters parameters) {
+    private synchronized Request createRequestFromParameters(RequestParameters parameters) {
         return new Request(parameters, feTimestamp.copy());
     }
 
+    private synchronized BatchRequest createBatchFromParameters(List<RequestParameters> parameters) {
+        return new BatchRequest(parameters, feTimestamp.copy());
+    }
+
+    /**
+     * A mutation's timestamp is taken when it's made, but it's only created once its replicas are picked.
+     */
+    private synchronized Timestamp copyTimestamp() {
+        return feTimestamp.copy();
+    }
+
+    /**
+     * @return bit set of the ids of replicas
+     */
+    private int recipientsOf(List<ReplicaApi> replicas) {
+        int recipients = 0;
+        for (ReplicaApi replica : replicas) {
+            recipients |= 1 << replicaPicker.idOf(replica);
+        }
+
+        return recipients;
+    }
+
+    /**
+     * Merges a timestamp returned by a replica, responses may arrive on several threads at once.
+     */
+    private synchronized void learnTimestamp(Timestamp timestamp) {
+        feTimestamp.merge(timestamp);
+    }
+
+    /**
+     * Runs a call to the network on the request executor.
+     * @return the result, or failed with a CompletionException wrapping the RemoteException
+     */
+    private <T> CompletableFuture<T> supplyRemotely(RemoteCall<T> call) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return call.perform();
+            } catch (RemoteException e) {
+                throw new CompletionException(e);
+            }
+        }, requestExecutor);
+    }
+
+    /**
+     * Waits for a request made through the asynchronous api, for the blocking api.
+     */
+    private static <T> T awaitResponse(CompletableFuture<T> response) throws RemoteException {
+        try {
+            return response.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RemoteException) {
+                throw (RemoteException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw e;
+        }
+    }
+
     @Override
     public MovieDetails query(RequestParameters parameters) throws RemoteException {
-        ReplicaApi replica = replicaPicker.pickReplicasToContact(1).get(0);
+        return awaitResponse(queryAsync(parameters));
+    }
 
-        QueryResponse response = replica.query(createRequestFromParameters(parameters));
+    @Override
+    public CompletableFuture<MovieDetails> queryAsync(RequestParameters parameters) {
+        Request request = createRequestFromParameters(parameters);
+
+        MovieDetails cachedDetails = queryCache.get(parameters, request.getTimestamp());
+        if (cachedDetails != null) {
+            return CompletableFuture.completedFuture(cachedDetails);
+        }
+
+        return supplyRemotely(() -> {
+            ReplicaApi replica = replicaPicker.pickReplicasToContact(1).get(0);
+
+            QueryResponse response = replicaPicker.call(replica, picked -> picked.query(request));
 
-        feTimestamp.merge(response.getTimestamp());
+            // Learnt before the future completes, so requests made after it depend on this response.
+            learnTimestamp(response.getTimestamp());
+            queryCache.put(parameters, response.getTimestamp(), response.getMovieDetails());
+
+            return response.getMovieDetails();
+        });
+    }
+
+    @Override
+    public List<MovieDetails> queryBatch(List<RequestParameters> parameters) throws RemoteException {
+        return awaitResponse(queryBatchAsync(parameters));
+    }
+
+    @Override
+    public CompletableFuture<List<MovieDetails>> queryBatchAsync(List<RequestParameters> parameters) {
+        BatchRequest batch = createBatchFromParameters(parameters);
+
+        return supplyRemotely(() -> {
+            ReplicaApi replica = replicaPicker.pickReplicasToContact(1).get(0);
+
+            BatchQueryResponse response = replicaPicker.call(replica, picked -> picked.queryBatch(batch));
+
+            learnTimestamp(response.getTimestamp());
+
+            List<MovieDetails> movieDetails = response.getMovieDetails();
+            for (int i = 0; i < movieDetails.size(); ++i) {
+                if (movieDetails.get(i) != null) {
+                    queryCache.put(parameters.get(i), response.getTimestamp(), movieDetails.get(i));
+                }
+            }
 
-        return response.getMovieDetails();
+            return movieDetails;
+        });
     }
 
     public void resetReplicaPickerState() {
         replicaPicker.resetLastContactedState();
     }
 
-    private boolean makeMutationRequests(RequestParameters parameters,
-                                         MutationRequestMaker requestMaker)
-            throws RemoteException {
+    private <Q, R> CompletableFuture<R> sendMutationRequest(ReplicaApi replica, Q request,
+                                                          MutationRequestMaker<Q, R> requestMaker,
+                                                          Function<R, Timestamp> timestampOf) {
+        return supplyRemotely(() -> {
+            R response = replicaPicker.call(replica, picked -> requestMaker.sendRequest(picked, request));
 
-        Timestamp originalTimestamp = feTimestamp.copy();
+            if (response == null) {
+                throw new RemoteException("replica gave no response");
+            }
 
-        Function<ReplicaApi, MutationResponse> makeRequestSafe = replica -> {
-            Request request = new Request(parameters, originalTimestamp);
+            // Merged even if we stopped waiting for this replica, so later requests depend on its update too.
+            learnTimestamp(timestampOf.apply(response));
 
-            try {
-                return requestMaker.sendRequest(replica, request);
-            } catch (RemoteException e) {
-                System.out.println("Failed to contact replica previously though reachable");
-            }
+            return response;
+        });
+    }
 
-            return null;
-        };
+    /**
+     * Completes with true once a quorum of the replicas have accepted the mutation, or with false once too few of
+     * them are left that could accept it, because the others rejected it (eg the rating doesn't exist) or couldn't
+     * be reached. If they don't answer in time it fails with a RemoteException, since the mutation may or may not
+     * have been applied.
+     */
+    private CompletableFuture<Boolean> awaitQuorum(List<CompletableFuture<MutationResponse>> responses) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        MutationTally tally = new MutationTally(Math.min(mutationQuorum, responses.size()), responses.size());
+
+        for (CompletableFuture<MutationResponse> response : responses) {
+            response.whenComplete((mutationResponse, failure) -> {
+                if (failure != null) {
+                    System.out.println("Failed to contact replica previously though reachable");
+                }
+
+                Boolean success = tally.record(mutationResponse);
+                if (success != null) {
+                    result.complete(success);
+                }
+            });
+        }
+
+        return result.orTimeout(MUTATION_TIMEOUT, TimeUnit.MILLISECONDS).exceptionally(timeout -> {
+            throw new CompletionException(new RemoteException(
+                    "timed out waiting for replicas to accept a mutation, it may still be applied"));
+        });
+    }
+
+    private CompletableFuture<Boolean> makeMutationRequests(RequestParameters parameters,
+                                                            MutationRequestMaker<Request, MutationResponse> requestMaker) {
+        Timestamp timestamp = copyTimestamp();
 
         /*
-          Notice below we pick 2 replicas to send the update request to
-          This means that we can handle 1 fault in the network.
+          Notice below we send the request to several replicas (2 by default)
+          This means that we can handle faults in the network.
+          Each replica is told which others got the request, so they know every entry that can be made for it.
          */
-        return replicaPicker.pickReplicasToContact(2).stream()
-                .map(makeRequestSafe)
-                .peek(response -> feTimestamp.merge(response.getTimestamp()))
-                .allMatch(MutationResponse::isSuccess);
+        return supplyRemotely(() -> replicaPicker.pickReplicasToContact(mutationReplicas))
+                .thenCompose(replicas -> {
+                    Request request = new Request(parameters, timestamp, recipientsOf(replicas));
+
+                    return awaitQuorum(replicas.stream()
+                            .map(replica -> sendMutationRequest(replica, request, requestMaker,
+                                    MutationResponse::getTimestamp))
+                            .collect(Collectors.toList()));
+                });
+    }
+
+    /**
+     * As awaitQuorum, but for every request in a batch. Completes once each request has succeeded or failed,
+     * or at the timeout with null for any request that hasn't, as it may still be applied.
+     */
+    private CompletableFuture<List<Boolean>> awaitBatchQuorum(List<CompletableFuture<BatchMutationResponse>> responses,
+                                                              int batchSize) {
+        CompletableFuture<List<Boolean>> result = new CompletableFuture<>();
+
+        BatchTally tally = new BatchTally(batchSize, Math.min(mutationQuorum, responses.size()), responses.size());
+
+        for (CompletableFuture<BatchMutationResponse> response : responses) {
+            response.whenComplete((batchResponse, failure) -> {
+                if (failure != null) {
+                    System.out.println("Failed to contact replica previously though reachable");
+                }
+
+                if (tally.record(batchResponse)) {
+                    result.complete(tally.getOutcomes());
+                }
+            });
+        }
+
+        return result.orTimeout(MUTATION_TIMEOUT, TimeUnit.MILLISECONDS).exceptionally(timeout -> {
+            System.out.println("Timed out waiting for replicas to accept a batch of mutations");
+            return tally.getOutcomes();
+        });
+    }
+
+    private CompletableFuture<List<Boolean>> makeBatchMutationRequests(
+            List<RequestParameters> parameters, MutationRequestMaker<BatchRequest, BatchMutationResponse> requestMaker) {
+        Timestamp timestamp = copyTimestamp();
+
+        return supplyRemotely(() -> replicaPicker.pickReplicasToContact(mutationReplicas))
+                .thenCompose(replicas -> {
+                    BatchRequest batch = new BatchRequest(parameters, timestamp, recipientsOf(replicas));
+
+                    return awaitBatchQuorum(replicas.stream()
+                            .map(replica -> sendMutationRequest(replica, batch, requestMaker,
+                                    BatchMutationResponse::getTimestamp))
+                            .collect(Collectors.toList()), batch.size());
+                });
     }
 
     @Override
     public boolean update(RequestParameters parameters) throws RemoteException {
+        return awaitResponse(updateAsync(parameters));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> updateAsync(RequestParameters parameters) {
         return makeMutationRequests(parameters, ReplicaApi::update);
     }
 
     @Override
     public boolean submit(RequestParameters parameters) throws RemoteException {
+        return awaitResponse(submitAsync(parameters));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> submitAsync(RequestParameters parameters) {
         return makeMutationRequests(parameters, ReplicaApi::submit);
     }
 
+    @Override
+    public List<Boolean> updateBatch(List<RequestParameters> parameters) throws RemoteException {
+        return awaitResponse(updateBatchAsync(parameters));
+    }
+
+    @Override
+    public CompletableFuture<List<Boolean>> updateBatchAsync(List<RequestParameters> parameters) {
+        return makeBatchMutationRequests(parameters, ReplicaApi::updateBatch);
+    }
+
+    @Override
+    public List<Boolean> submitBatch(List<RequestParameters> parameters) throws RemoteException {
+        return awaitResponse(submitBatchAsync(parameters));
+    }
+
+    @Override
+    public CompletableFuture<List<Boolean>> submitBatchAsync(List<RequestParameters> parameters) {
+        return makeBatchMutationRequests(parameters, ReplicaApi::submitBatch);
+    }
+
     @Override
     public void changeReplicaStatus(int replicaId, ReplicaStatus status) throws RemoteException {
-        try {
-            replicaPicker.getReplica(replicaId).setReplicaStatus(status);
-        } catch (NotActiveException ignored) {
-        }
+        replicaPicker.changeStatus(replicaId, status);
+    }
+
+    @FunctionalInterface
+    private interface RemoteCall<T> {
+        T perform() throws RemoteException;
     }
 
     @FunctionalInterface
-    private interface MutationRequestMaker {
-        MutationResponse sendRequest(ReplicaApi replica, Request request) throws RemoteException;
+    private interface MutationRequestMaker<Q, R> {
+        R sendRequest(ReplicaApi replica, Q request) throws RemoteException;
+    }
+
+    /**
+     * Counts the replicas that have accepted a mutation. It succeeds once a quorum have accepted it, and fails once
+     * too few replicas are left that could, so one replica rejecting it doesn't fail it if the others accept it.
+     */
+    private static class MutationTally {
+        private final int quorum;
+
+        private int accepted;
+
+        private int waiting;
+
+        MutationTally(int quorum, int replicas) {
+            this.quorum = quorum;
+            this.waiting = replicas;
+        }
+
+        /**
+         * @param response of a replica, or null if it couldn't be reached
+         * @return whether the mutation succeeded, or null if that isn't decided yet
+         */
+        synchronized Boolean record(MutationResponse response) {
+            --waiting;
+
+            if (response != null && response.isSuccess()) {
+                ++accepted;
+            }
+
+            if (accepted >= quorum) {
+                return true;
+            } else if (accepted + waiting < quorum) {
+                return false;
+            }
+
+            return null;
+        }
+    }
+
+    /**
+     * As MutationTally, for each request of a batch mutation.
+     */
+    private static class BatchTally {
+        private final int quorum;
+
+        private final int[] accepted;
+
+        private int waiting;
+
+        BatchTally(int batchSize, int quorum, int replicas) {
+            this.quorum = quorum;
+            this.accepted = new int[batchSize];
+            this.waiting = replicas;
+        }
+
+        private Boolean outcomeOf(int request) {
+            if (accepted[request] >= quorum) {
+                return true;
+            } else if (accepted[request] + waiting < quorum) {
+                return false;
+            }
+
+            return null;
+        }
+
+        /**
+         * @param response of a replica, or null if it couldn't be reached
+         * @return whether every request has now succeeded or failed
+         */
+        synchronized boolean record(BatchMutationResponse response) {
+            --waiting;
+
+            boolean allDecided = true;
+            for (int i = 0; i < accepted.length; ++i) {
+                if (response != null && response.isSuccess(i)) {
+                    ++accepted[i];
+                }
+
+                allDecided &= outcomeOf(i) != null;
+            }
+
+            return allDecided;
+        }
+
+        /**
+         * @return whether each request succeeded, null for any that isn't decided yet
+         */
+        synchronized List<Boolean> getOutcomes() {
+            List<Boolean> outcomes = new ArrayList<>(accepted.length);
+            for (int i = 0; i < accepted.length; ++i) {
+                outcomes.add(outcomeOf(i));
+            }
+
+            return outcomes;
+        }
     }
 }
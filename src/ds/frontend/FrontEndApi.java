@@ -6,6 +6,7 @@ import ds.replica.ReplicaStatus;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
 public interface FrontEndApi extends Remote {
     /**
@@ -22,7 +23,7 @@ public interface FrontEndApi extends Remote {
      *
      * @param parameters of the request
      * @return whether the update was a success
-     * @throws RemoteException
+     * @throws RemoteException if the replicas didn't answer in time, the update may still be applied
      */
     boolean update(RequestParameters parameters) throws RemoteException;
 
@@ -32,10 +33,39 @@ public interface FrontEndApi extends Remote {
      *
      * @param parameters of the request
      * @return whether the submission was a success
-     * @throws RemoteException
+     * @throws RemoteException if the replicas didn't answer in time, the submission may still be applied
      */
     boolean submit(RequestParameters parameters) throws RemoteException;
 
+    /**
+     * Queries the distributed network for many movies in one request
+     *
+     * @param parameters of each query
+     * @return details about each movie in the same order, null for any movie that doesn't exist
+     * @throws RemoteException
+     */
+    List<MovieDetails> queryBatch(List<RequestParameters> parameters) throws RemoteException;
+
+    /**
+     * Updates many existing ratings in one request, each succeeds or fails on its own
+     *
+     * @param parameters of each update
+     * @return whether each update was a success, in the same order. null for any the replicas didn't answer in time,
+     * which may still be applied
+     * @throws RemoteException
+     */
+    List<Boolean> updateBatch(List<RequestParameters> parameters) throws RemoteException;
+
+    /**
+     * Submits many new ratings in one request, each succeeds or fails on its own
+     *
+     * @param parameters of each submission
+     * @return whether each submission was a success, in the same order. null for any the replicas didn't answer
+     * in time, which may still be applied
+     * @throws RemoteException
+     */
+    List<Boolean> submitBatch(List<RequestParameters> parameters) throws RemoteException;
+
     /**
      * Changes the replica status of a replica on the network
      * @param replicaId of the replica to change
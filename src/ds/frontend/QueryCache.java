@@ -0,0 +1,87 @@
+package ds.frontend;
+
+import ds.client.RequestParameters;
+import ds.core.Timestamp;
+import ds.movies.MovieDetails;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Recent query results kept by the frontend, each tagged with the value timestamp of the replica that answered it.
+ * A cached result may answer a request whose timestamp is before or equal to that value timestamp,
+ * since any replica whose value is at that timestamp would give the same answer.
+ * <p>
+ * Only summaries are cached, results with every user's ranking are too big to keep.
+ * The least recently used result is evicted once the cache is full.
+ */
+class QueryCache {
+    static final int DEFAULT_CAPACITY = 10_000;
+
+    private static class CachedResult {
+        private final Timestamp valueTimestamp;
+
+        private final MovieDetails movieDetails;
+
+        CachedResult(Timestamp valueTimestamp, MovieDetails movieDetails) {
+            this.valueTimestamp = valueTimestamp;
+            this.movieDetails = movieDetails;
+        }
+    }
+
+    /**
+     * Results keyed by movie and user, in order of use.
+     */
+    private final Map<Long, CachedResult> results;
+
+    QueryCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    QueryCache(int capacity) {
+        results = new LinkedHashMap<Long, CachedResult>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, CachedResult> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    private static long keyOf(RequestParameters parameters) {
+        return ((long) parameters.getMovieId() << 32) | (parameters.getUserId() & 0xffffffffL);
+    }
+
+    /**
+     * @param parameters        of the query
+     * @param requiredTimestamp timestamp of the request, the result must be at least this up to date
+     * @return the cached result, or null if there isn't one that is up to date enough
+     */
+    synchronized MovieDetails get(RequestParameters parameters, Timestamp requiredTimestamp) {
+        if (parameters.isIncludingAllRankings()) {
+            return null;
+        }
+
+        CachedResult result = results.get(keyOf(parameters));
+
+        return result != null && requiredTimestamp.isBeforeOrEqual(result.valueTimestamp) ? result.movieDetails : null;
+    }
+
+    /**
+     * Caches a query result, unless a result that is more up to date is already cached.
+     * @param parameters     of the query
+     * @param valueTimestamp timestamp the replica answered at
+     * @param movieDetails   the result
+     */
+    synchronized void put(RequestParameters parameters, Timestamp valueTimestamp, MovieDetails movieDetails) {
+        if (parameters.isIncludingAllRankings()) {
+            return;
+        }
+
+        long key = keyOf(parameters);
+        CachedResult cached = results.get(key);
+
+        if (cached == null || !valueTimestamp.isBeforeOrEqual(cached.valueTimestamp)) {
+            results.put(key, new CachedResult(valueTimestamp, movieDetails));
+        }
+    }
+}
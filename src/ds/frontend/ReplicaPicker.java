@@ -6,10 +6,9 @@ import ds.replica.ReplicaStatus;
 
 import java.io.NotActiveException;
 import java.rmi.RemoteException;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.stream.Collectors;
 
 import static ds.core.NetworkSimulator.NUMBER_OF_REPLICAS;
@@ -17,13 +16,73 @@ import static ds.core.NetworkSimulator.NUMBER_OF_REPLICAS;
 /**
  * ReplicaPicker provides a less naive way of picking a replicas to communicate with.
  * The simple rules are:
- * - It will continue to communicate with the same replicas whilst requests are successful.
- * - If one of these same replicas becomes overloaded or offline it will try to move to another replica
- * - If no replicas are active it will choose overloaded replicas.
+ * - It prefers active replicas, if no replicas are active it will choose overloaded replicas.
  * - If all replicas are offline then it throws an error.
+ * - Amongst replicas of the same status it picks by the power of two choices: of two replicas chosen at random
+ * it picks the one expected to answer soonest, judging by how quickly it has answered recently, how often it
+ * has failed and how many requests it's still working on.
+ * So a replica that is slow, but doesn't report itself as overloaded, is contacted less and less.
+ * A replica that hasn't answered yet is expected to be as quick as the average of those that have.
+ * Of two candidates expected to answer as soon as each other the lower numbered one is picked.
+ * <p>
+ * Requests must be made through call for the picker to learn how each replica performs.
  */
 class ReplicaPicker {
-    private Deque<Integer> lastContactedReplicas = new ArrayDeque<>();
+    /**
+     * Weight of the newest sample in the moving averages of latency and error rate.
+     */
+    private static final double SMOOTHING_FACTOR = 0.2;
+
+    /**
+     * How much a replica that always fails is penalised relative to one that never does.
+     */
+    private static final double ERROR_PENALTY = 10;
+
+    /**
+     * Latency expected of every replica before any has answered a request.
+     */
+    private static final double DEFAULT_LATENCY_NANOS = 1_000_000;
+
+    @FunctionalInterface
+    interface ReplicaCall<T> {
+        T call(ReplicaApi replica) throws RemoteException;
+    }
+
+    /**
+     * What the picker has learnt about a replica from the requests made to it.
+     */
+    private static class ReplicaLoad {
+        /**
+         * Exponentially weighted moving average of response time, negative until the first response.
+         */
+        private double averageLatencyNanos = -1;
+
+        private double errorRate;
+
+        private int outstandingRequests;
+
+        private void record(long latencyNanos, boolean failed) {
+            averageLatencyNanos = averageLatencyNanos < 0 ? latencyNanos
+                    : SMOOTHING_FACTOR * latencyNanos + (1 - SMOOTHING_FACTOR) * averageLatencyNanos;
+            errorRate = SMOOTHING_FACTOR * (failed ? 1 : 0) + (1 - SMOOTHING_FACTOR) * errorRate;
+        }
+
+        private boolean hasLatency() {
+            return averageLatencyNanos >= 0;
+        }
+
+        /**
+         * @param priorLatencyNanos latency to expect if this replica hasn't answered yet
+         * @return estimate of how long a new request would take
+         */
+        private double expectedCost(double priorLatencyNanos) {
+            double latency = hasLatency() ? averageLatencyNanos : priorLatencyNanos;
+
+            return (outstandingRequests + 1) * latency * (1 + ERROR_PENALTY * errorRate);
+        }
+    }
+
+    private ReplicaLoad[] replicaLoads = new ReplicaLoad[NUMBER_OF_REPLICAS];
     private StubLoader stubLoader;
 
     ReplicaPicker() throws RemoteException {
@@ -42,19 +101,60 @@ class ReplicaPicker {
 
     }
 
-    private List<Integer> chooseReplicasWithStatus(int number, ReplicaStatus status) throws RemoteException {
-        List<Integer> acceptedReplicaIds = new ArrayList<>();
+    /**
+     * @return average latency of the replicas that have answered, or the default if none has
+     */
+    private double priorLatencyNanos() {
+        double totalLatency = 0;
+        int measured = 0;
+
+        for (ReplicaLoad load : replicaLoads) {
+            if (load.hasLatency()) {
+                totalLatency += load.averageLatencyNanos;
+                ++measured;
+            }
+        }
+
+        return measured > 0 ? totalLatency / measured : DEFAULT_LATENCY_NANOS;
+    }
+
+    /**
+     * Picks the cheaper of two random candidates, or the only one. Ties go to the lower id.
+     */
+    private int pickByTwoChoices(List<Integer> candidates) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
 
-        for (int i = 0; i < lastContactedReplicas.size() && acceptedReplicaIds.size() < number; ++i) {
-            int replicaId = lastContactedReplicas.removeFirst();
+        int first = random.nextInt(candidates.size());
+        if (candidates.size() == 1) {
+            return candidates.remove(first);
+        }
+
+        int second = (first + 1 + random.nextInt(candidates.size() - 1)) % candidates.size();
+
+        double priorLatency = priorLatencyNanos();
+        double firstCost = replicaLoads[candidates.get(first)].expectedCost(priorLatency);
+        double secondCost = replicaLoads[candidates.get(second)].expectedCost(priorLatency);
 
+        boolean pickFirst = firstCost < secondCost
+                || (firstCost == secondCost && candidates.get(first) < candidates.get(second));
+
+        return candidates.remove(pickFirst ? first : second);
+    }
+
+    private List<Integer> chooseReplicasWithStatus(int number, ReplicaStatus status) throws RemoteException {
+        List<Integer> candidates = new ArrayList<>();
+
+        for (int replicaId = 0; replicaId < NUMBER_OF_REPLICAS; ++replicaId) {
             if (isReplicaInStatus(replicaId, status)) {
-                acceptedReplicaIds.add(replicaId);
-            } else {
-                lastContactedReplicas.addLast(replicaId);
+                candidates.add(replicaId);
             }
         }
 
+        List<Integer> acceptedReplicaIds = new ArrayList<>();
+        while (acceptedReplicaIds.size() < number && !candidates.isEmpty()) {
+            acceptedReplicaIds.add(pickByTwoChoices(candidates));
+        }
+
         return acceptedReplicaIds;
     }
 
@@ -83,19 +183,66 @@ class ReplicaPicker {
             throw new RemoteException("all replicas were offline, please consider restarting one.");
         }
 
-        replicaIds.forEach(lastContactedReplicas::addFirst);
-
         return loadReplicasFromIds(replicaIds);
     }
 
-    void resetLastContactedState() {
-        lastContactedReplicas.clear();
+    int idOf(ReplicaApi replica) {
+        for (int replicaId = 0; replicaId < NUMBER_OF_REPLICAS; ++replicaId) {
+            if (stubLoader.getCachedReplica(replicaId) == replica) {
+                return replicaId;
+            }
+        }
+
+        throw new IllegalArgumentException("replica wasn't picked by this picker");
+    }
+
+    /**
+     * Makes a request to a picked replica, recording how long it took and whether it failed.
+     * The status of a replica a request fails on is refreshed, so it isn't picked again if it's offline.
+     */
+    <T> T call(ReplicaApi replica, ReplicaCall<T> request) throws RemoteException {
+        int replicaId = idOf(replica);
+
+        synchronized (this) {
+            ++replicaLoads[replicaId].outstandingRequests;
+        }
+
+        long start = System.nanoTime();
+        boolean failed = true;
+
+        try {
+            T response = request.call(replica);
+            failed = false;
+
+            return response;
+        } finally {
+            synchronized (this) {
+                ReplicaLoad load = replicaLoads[replicaId];
+
+                --load.outstandingRequests;
+                load.record(System.nanoTime() - start, failed);
+            }
+
+            if (failed) {
+                stubLoader.refreshStatus(replicaId);
+            }
+        }
+    }
+
+    /**
+     * Forgets what has been learnt about the replicas, so each is expected to cost the same until it's contacted.
+     * Until then ties go to the lower id, so the highest numbered replica that can be picked never is.
+     */
+    synchronized void resetLastContactedState() {
         for (int i = 0; i < NUMBER_OF_REPLICAS; ++i) {
-            lastContactedReplicas.addLast(i);
+            int outstandingRequests = replicaLoads[i] != null ? replicaLoads[i].outstandingRequests : 0;
+
+            replicaLoads[i] = new ReplicaLoad();
+            replicaLoads[i].outstandingRequests = outstandingRequests;
         }
     }
 
-    ReplicaApi getReplica(int replicaId) throws NotActiveException, RemoteException {
-        return stubLoader.getReplicaStub(replicaId);
+    void changeStatus(int replicaId, ReplicaStatus status) throws RemoteException {
+        stubLoader.changeStatus(replicaId, status);
     }
 }
@@ -3,9 +3,16 @@ package ds.frontend;
 import ds.client.RequestParameters;
 import ds.core.Timestamp;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.UUID;
 
+import static ds.core.NetworkSimulator.NUMBER_OF_REPLICAS;
+import static ds.core.Varints.readVarInt;
+import static ds.core.Varints.writeVarInt;
+
 /**
  * A generic request made to a replica.
  * We make no Java distinction between mutator requests and query requests
@@ -25,11 +32,32 @@ public class Request implements Serializable {
      * Unique ID that describes the operation we want to the data
      */
     private UUID uid;
+    /**
+     * Bit set of the replicas the frontend sent a mutation to, each of which may create an update log entry for it.
+     * Empty for queries.
+     */
+    private int recipients;
+
+    static {
+        if (NUMBER_OF_REPLICAS > Integer.SIZE) {
+            throw new IllegalStateException("recipients holds a bit per replica, so at most "
+                    + Integer.SIZE + " replicas are supported");
+        }
+    }
 
     Request(RequestParameters parameters, Timestamp timestamp) {
+        this(parameters, timestamp, 0);
+    }
+
+    Request(RequestParameters parameters, Timestamp timestamp, int recipients) {
+        this(parameters, timestamp, UUID.randomUUID(), recipients);
+    }
+
+    private Request(RequestParameters parameters, Timestamp timestamp, UUID uid, int recipients) {
         this.parameters = parameters;
         this.timestamp = timestamp;
-        uid = UUID.randomUUID();
+        this.uid = uid;
+        this.recipients = recipients;
     }
 
     public RequestParameters getParameters() {
@@ -44,7 +72,30 @@ public class Request implements Serializable {
         return uid;
     }
 
+    public int getRecipients() {
+        return recipients;
+    }
+
     public boolean isStable(Timestamp valueTimestamp) {
         return timestamp.isBeforeOrEqual(valueTimestamp);
     }
+
+    /**
+     * Writes the request in the binary wire format, with its timestamp relative to base.
+     */
+    public void writeTo(DataOutput out, Timestamp base) throws IOException {
+        out.writeLong(uid.getMostSignificantBits());
+        out.writeLong(uid.getLeastSignificantBits());
+        writeVarInt(out, recipients);
+        parameters.writeTo(out);
+        timestamp.writeTo(out, base);
+    }
+
+    public static Request readFrom(DataInput in, Timestamp base) throws IOException {
+        UUID uid = new UUID(in.readLong(), in.readLong());
+        int recipients = readVarInt(in);
+        RequestParameters parameters = RequestParameters.readFrom(in);
+
+        return new Request(parameters, Timestamp.readFrom(in, base), uid, recipients);
+    }
 }
@@ -1,60 +1,241 @@
 package ds.movies;
 
-import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Scanner;
 
+/**
+ * Reads a CSV file field by field straight from the bytes of the memory mapped file.
+ * Numeric fields are parsed without creating a String, only text fields are decoded (as UTF-8).
+ * Fields may be quoted, in which case they can contain commas and "" for a quote.
+ * <p>
+ * The read methods consume a field and the comma after it, endLine moves on to the next line.
+ */
 public class CSVReader {
-    private Scanner scanner;
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9,
+            1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18
+    };
+
+    private ByteBuffer buffer;
+
+    private int position;
+
+    /**
+     * Whether the last field read was followed by a comma, ie there is another field on the line.
+     */
+    private boolean moreFieldsOnLine;
+
+    /**
+     * Holds the bytes of a text field whilst it's decoded.
+     */
+    private byte[] scratch = new byte[256];
 
     public CSVReader(String fileName) {
-        try {
-            scanner = new Scanner(new File(fileName));
-            scanner.nextLine(); // Skip title line.
-        } catch (FileNotFoundException e) {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
             throw new IllegalArgumentException("initalisation error, couldn't read data " + fileName);
         }
+
+        endLine(); // Skip title line.
     }
 
-    private List<String> splitLineIntoAttributes(String line) {
-        // There may be a CSV in an attribute, escaped using quotes.
-        // So just splitting by "," will not work.
+    private boolean isEndOfLine(int i) {
+        return i >= buffer.limit() || buffer.get(i) == '\n' || buffer.get(i) == '\r';
+    }
 
-        List<String> attributes = new ArrayList<>();
-        String[] rawSplit = line.split(",");
+    private boolean isEndOfField(int i) {
+        return isEndOfLine(i) || buffer.get(i) == ',';
+    }
+
+    /**
+     * Moves past the comma ending the current field, if there is one.
+     */
+    private void skipDelimiter() {
+        moreFieldsOnLine = position < buffer.limit() && buffer.get(position) == ',';
+
+        if (moreFieldsOnLine) {
+            ++position;
+        }
+    }
+
+    private NumberFormatException formatException(int start) {
+        int end = start;
+        while (!isEndOfField(end)) {
+            ++end;
+        }
+
+        return new NumberFormatException("For input string: \"" + decode(start, end) + "\"");
+    }
+
+    public int readInt() {
+        int start = position;
+        boolean negative = position < buffer.limit() && buffer.get(position) == '-';
+        if (negative) {
+            ++position;
+        }
+
+        if (isEndOfField(position)) {
+            throw formatException(start);
+        }
+
+        int value = 0;
+        for (; !isEndOfField(position); ++position) {
+            int digit = buffer.get(position) - '0';
+
+            if (digit < 0 || digit > 9) {
+                throw formatException(start);
+            }
+
+            value = value * 10 + digit;
+        }
+
+        skipDelimiter();
+
+        return negative ? -value : value;
+    }
+
+    public float readFloat() {
+        int start = position;
+        boolean negative = position < buffer.limit() && buffer.get(position) == '-';
+        if (negative) {
+            ++position;
+        }
+
+        long mantissa = 0;
+        int numberOfDigits = 0;
+        int fractionDigits = -1;
+
+        for (; !isEndOfField(position); ++position) {
+            byte b = buffer.get(position);
+
+            if (b == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else if (b >= '0' && b <= '9' && numberOfDigits < POWERS_OF_TEN.length - 1) {
+                mantissa = mantissa * 10 + (b - '0');
+                ++numberOfDigits;
+
+                if (fractionDigits >= 0) {
+                    ++fractionDigits;
+                }
+            } else {
+                // Exponents, NaN, or too many digits to be exact, leave those to the library.
+                while (!isEndOfField(position)) {
+                    ++position;
+                }
+                float value = Float.parseFloat(decode(start, position));
+
+                skipDelimiter();
+                return value;
+            }
+        }
+
+        if (numberOfDigits == 0) {
+            throw formatException(start);
+        }
+
+        skipDelimiter();
+
+        double value = mantissa / POWERS_OF_TEN[Math.max(fractionDigits, 0)];
+        return (float) (negative ? -value : value);
+    }
+
+    private String decode(int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = start; i < end; ++i) {
+            bytes[i - start] = buffer.get(i);
+        }
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void appendToScratch(int length, byte b) {
+        if (length == scratch.length) {
+            byte[] larger = new byte[2 * scratch.length];
+            System.arraycopy(scratch, 0, larger, 0, length);
+            scratch = larger;
+        }
+
+        scratch[length] = b;
+    }
+
+    public String readString() {
+        int length = 0;
+
+        if (position < buffer.limit() && buffer.get(position) == '"') {
+            // There may be a comma or an escaped quote in a quoted field, so it can't just end at a comma.
+            ++position;
 
-        for (int i = 0; i < rawSplit.length; ++i) {
-            String attribute = rawSplit[i];
+            while (position < buffer.limit()) {
+                byte b = buffer.get(position++);
 
-            if (attribute.startsWith("\"") && !attribute.endsWith("\"")) {
-                i += 1;
-                while (!attribute.endsWith("\"")) {
-                    attribute += rawSplit[i];
-                    if (!attribute.endsWith("\"")) {
-                        ++i;
+                if (b == '"') {
+                    if (position < buffer.limit() && buffer.get(position) == '"') {
+                        ++position;
+                    } else {
+                        break;
                     }
                 }
 
-                attribute = attribute.substring(1, attribute.length() - 1);
+                appendToScratch(length++, b);
             }
 
-            attributes.add(attribute);
+            // Anything between the closing quote and the comma is ignored.
+            while (!isEndOfField(position)) {
+                ++position;
+            }
+        } else {
+            for (; !isEndOfField(position); ++position) {
+                appendToScratch(length++, buffer.get(position));
+            }
         }
 
-        return attributes;
+        skipDelimiter();
+
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
     }
 
+    /**
+     * Skips any fields left on the current line and moves to the start of the next one.
+     */
+    public void endLine() {
+        while (!isEndOfLine(position)) {
+            ++position;
+        }
+
+        if (position < buffer.limit() && buffer.get(position) == '\r') {
+            ++position;
+        }
+        if (position < buffer.limit() && buffer.get(position) == '\n') {
+            ++position;
+        }
+    }
+
+    /**
+     * Reads every field on the current line as a String and moves to the next line.
+     */
     public List<String> readAttributes() {
-        if (!scanner.hasNextLine()) {
+        if (!hasNextLine()) {
             return null;
         }
 
-        return splitLineIntoAttributes(scanner.nextLine());
+        List<String> attributes = new ArrayList<>();
+        do {
+            attributes.add(readString());
+        } while (moreFieldsOnLine);
+
+        endLine();
+
+        return attributes;
     }
 
     public boolean hasNextLine() {
-        return scanner.hasNextLine();
+        return position < buffer.limit();
     }
 }
@@ -0,0 +1,183 @@
+package ds.movies;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/**
+ * Map from int to float stored in two primitive arrays using open addressing,
+ * so there is no boxed key, boxed value or entry object per mapping.
+ * A key of 0 marks an empty slot, so the mapping for key 0 itself is held separately.
+ * Mappings can't be removed since rankings are never deleted.
+ */
+class IntFloatMap implements Serializable {
+    private static final int MINIMUM_CAPACITY = 8;
+
+    @FunctionalInterface
+    interface IntFloatConsumer {
+        void accept(int key, float value);
+    }
+
+    private transient int[] keys;
+    private transient float[] values;
+
+    private transient boolean hasZeroKey;
+    private transient float zeroKeyValue;
+
+    private transient int size;
+
+    IntFloatMap() {
+        allocate(MINIMUM_CAPACITY);
+    }
+
+    /**
+     * Creates a map large enough to hold expectedSize mappings without resizing.
+     */
+    IntFloatMap(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    private static int capacityFor(int numberOfMappings) {
+        int capacity = MINIMUM_CAPACITY;
+        while (4 * numberOfMappings > 3 * capacity) {
+            capacity *= 2;
+        }
+
+        return capacity;
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new float[capacity];
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return slot holding key, or the empty slot where it would be inserted
+     */
+    private int findSlot(int key) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+
+        while (keys[slot] != 0 && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    boolean containsKey(int key) {
+        return key == 0 ? hasZeroKey : keys[findSlot(key)] != 0;
+    }
+
+    float get(int key, float defaultValue) {
+        if (key == 0) {
+            return hasZeroKey ? zeroKeyValue : defaultValue;
+        }
+
+        int slot = findSlot(key);
+        return keys[slot] != 0 ? values[slot] : defaultValue;
+    }
+
+    void put(int key, float value) {
+        if (key == 0) {
+            if (!hasZeroKey) {
+                hasZeroKey = true;
+                ++size;
+            }
+
+            zeroKeyValue = value;
+            return;
+        }
+
+        int slot = findSlot(key);
+        boolean isNewKey = keys[slot] == 0;
+
+        keys[slot] = key;
+        values[slot] = value;
+
+        if (isNewKey && 4 * ++size > 3 * keys.length) {
+            resize(2 * keys.length);
+        }
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        float[] oldValues = values;
+
+        allocate(capacity);
+
+        for (int i = 0; i < oldKeys.length; ++i) {
+            if (oldKeys[i] != 0) {
+                int slot = findSlot(oldKeys[i]);
+
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    void forEach(IntFloatConsumer consumer) {
+        if (hasZeroKey) {
+            consumer.accept(0, zeroKeyValue);
+        }
+
+        for (int i = 0; i < keys.length; ++i) {
+            if (keys[i] != 0) {
+                consumer.accept(keys[i], values[i]);
+            }
+        }
+    }
+
+    IntFloatMap copy() {
+        IntFloatMap copy = new IntFloatMap();
+
+        copy.keys = keys.clone();
+        copy.values = values.clone();
+        copy.hasZeroKey = hasZeroKey;
+        copy.zeroKeyValue = zeroKeyValue;
+        copy.size = size;
+
+        return copy;
+    }
+
+    /**
+     * Only the mappings are written, not the empty slots.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(size);
+
+        if (hasZeroKey) {
+            out.writeInt(0);
+            out.writeFloat(zeroKeyValue);
+        }
+
+        for (int i = 0; i < keys.length; ++i) {
+            if (keys[i] != 0) {
+                out.writeInt(keys[i]);
+                out.writeFloat(values[i]);
+            }
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+
+        int numberOfMappings = in.readInt();
+
+        allocate(capacityFor(numberOfMappings));
+        for (int i = 0; i < numberOfMappings; ++i) {
+            put(in.readInt(), in.readFloat());
+        }
+    }
+}
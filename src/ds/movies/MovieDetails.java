@@ -2,21 +2,30 @@ package ds.movies;
 
 import java.io.Serializable;
 
+/**
+ * Result of a query about a movie. The rankings are summarised unless every user's ranking was asked for.
+ */
 public class MovieDetails implements Serializable {
     private Movie movie;
 
+    private RankingSummary rankingSummary;
+
+    /**
+     * Every user's ranking of the movie, null unless the query asked for them.
+     */
     private RankingCounter rankingCounter;
 
     private float userRanking;
 
-    public MovieDetails(Movie movie, RankingCounter rankingCounter) {
+    public MovieDetails(Movie movie, RankingCounter rankingCounter, boolean includeAllRankings) {
         this.movie = movie;
-        this.rankingCounter = rankingCounter;
+        this.rankingSummary = rankingCounter.summarise();
+        this.rankingCounter = includeAllRankings ? rankingCounter : null;
         this.userRanking = -1;
     }
 
-    public MovieDetails(Movie movie, RankingCounter rankingCounter, int userId) {
-        this(movie, rankingCounter);
+    public MovieDetails(Movie movie, RankingCounter rankingCounter, int userId, boolean includeAllRankings) {
+        this(movie, rankingCounter, includeAllRankings);
         userRanking = rankingCounter.getRankingForUser(userId);
     }
 
@@ -24,6 +33,13 @@ public class MovieDetails implements Serializable {
         return movie;
     }
 
+    public RankingSummary getRankingSummary() {
+        return rankingSummary;
+    }
+
+    /**
+     * @return every user's ranking, or null if the query didn't ask for them
+     */
     public RankingCounter getRankingCounter() {
         return rankingCounter;
     }
@@ -35,6 +51,6 @@ public class MovieDetails implements Serializable {
     @Override
     public String toString() {
         return String.format("Movie: %s\n Ranking: %s\n Specific User Ranking: %f",
-                movie, rankingCounter, userRanking);
+                movie, rankingSummary, userRanking);
     }
 }
@@ -1,6 +1,5 @@
 package ds.movies;
 
-import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -21,11 +20,10 @@ public class MovieReader {
     }
 
     public Movie readMovie() {
-        List<String> attributes = reader.readAttributes();
-
-        int id = Integer.parseInt(attributes.get(0));
-        String rawName = attributes.get(1);
-        String[] genres = splitAttributeString(attributes.get(2));
+        int id = reader.readInt();
+        String rawName = reader.readString();
+        String[] genres = splitAttributeString(reader.readString());
+        reader.endLine();
 
         Matcher nameYearMatch = nameAndYearPattern.matcher(rawName);
 
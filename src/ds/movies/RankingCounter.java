@@ -1,16 +1,63 @@
 package ds.movies;
 
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.nio.ByteBuffer;
 
+/**
+ * All the rankings users have given a movie.
+ * A histogram of the rankings, their number and their sum are kept up to date as rankings are set,
+ * so the average and histogram never need to look at the individual rankings.
+ */
 public class RankingCounter implements Serializable {
-    private Map<Integer, Float> userRankings = new HashMap<>();
+    /**
+     * Rankings are given on a scale from 0 to MAXIMUM_RANKING in steps of RANKING_STEP.
+     */
+    public static final float RANKING_STEP = 0.5f;
+    public static final float MAXIMUM_RANKING = 5.0f;
+
+    private static final int NUMBER_OF_BUCKETS = (int) (MAXIMUM_RANKING / RANKING_STEP) + 1;
+
+    private IntFloatMap userRankings = new IntFloatMap();
+
+    /**
+     * histogram[i] is the number of rankings nearest to i * RANKING_STEP.
+     */
+    private int[] histogram = new int[NUMBER_OF_BUCKETS];
+
+    private double rankingSum;
+
+    /**
+     * @return a counter with the same rankings which can be changed independently of this one
+     */
+    public RankingCounter copy() {
+        RankingCounter copy = new RankingCounter();
+        copy.userRankings = userRankings.copy();
+        copy.histogram = histogram.clone();
+        copy.rankingSum = rankingSum;
+
+        return copy;
+    }
+
+    private static int bucketFor(float ranking) {
+        int bucket = Math.round(ranking / RANKING_STEP);
+
+        return Math.max(0, Math.min(NUMBER_OF_BUCKETS - 1, bucket));
+    }
+
+    private void count(float ranking, int change) {
+        histogram[bucketFor(ranking)] += change;
+        rankingSum += change * (double) ranking;
+    }
 
     public void setRanking(int userId, float ranking) {
+        if (userRankings.containsKey(userId)) {
+            count(userRankings.get(userId, -1), -1);
+        }
+
         userRankings.put(userId, ranking);
+        count(ranking, 1);
     }
 
     public boolean updateRanking(int userId, float ranking) {
@@ -18,37 +65,33 @@ public class RankingCounter implements Serializable {
             return false;
         }
 
-        userRankings.put(userId, ranking);
+        setRanking(userId, ranking);
 
         return true;
     }
 
     float getRankingForUser(int userId) {
-        return userRankings.containsKey(userId) ? userRankings.get(userId) : -1;
+        return userRankings.get(userId, -1);
     }
 
-    private int getFrequencyForRanking(float ranking) {
-        return (int) userRankings.entrySet().stream()
-                .filter(entry -> entry.getValue() == ranking)
-                .count();
+    /**
+     * @return copy of the histogram, element i is the number of rankings nearest to i * RANKING_STEP
+     */
+    public int[] getHistogram() {
+        return histogram.clone();
     }
 
-    private Set<Float> getRankings() {
-        return new HashSet<>(userRankings.values());
+    public int getNumberOfRankings() {
+        return userRankings.size();
+    }
+
+    public RankingSummary summarise() {
+        return new RankingSummary(getNumberOfRankings(), getAverageRanking(), getHistogram());
     }
 
     @Override
     public String toString() {
-        StringBuilder output = new StringBuilder();
-        Set<Float> rankings = getRankings();
-
-        output.append("[ ");
-        for (float ranking : rankings) {
-            output.append(String.format("%.1f => %d, ", ranking, getFrequencyForRanking(ranking)));
-        }
-        output.append(" ]");
-
-        return output.toString();
+        return summarise().toString();
     }
 
     public boolean userHasRanked(int userId) {
@@ -56,17 +99,54 @@ public class RankingCounter implements Serializable {
     }
 
     public float getAverageRanking() {
-        // Weighted average of the rankings.
-        float frequencySum = 0;
-        float weightedSum = 0;
+        return (float) (rankingSum / getNumberOfRankings());
+    }
+
+    /**
+     * Writes the number of rankings, then every user id, then every ranking in the same order.
+     * Keeping each column together lets readFrom copy it out of a buffer in one go.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        int numberOfRankings = userRankings.size();
+        int[] userIds = new int[numberOfRankings];
+        float[] rankings = new float[numberOfRankings];
+
+        int[] next = {0};
+        userRankings.forEach((userId, ranking) -> {
+            userIds[next[0]] = userId;
+            rankings[next[0]++] = ranking;
+        });
+
+        out.writeInt(numberOfRankings);
+        for (int userId : userIds) {
+            out.writeInt(userId);
+        }
+        for (float ranking : rankings) {
+            out.writeFloat(ranking);
+        }
+    }
+
+    /**
+     * Reads a counter written by writeTo, leaving the buffer positioned after it.
+     */
+    public static RankingCounter readFrom(ByteBuffer buffer) {
+        int numberOfRankings = buffer.getInt();
+
+        int[] userIds = new int[numberOfRankings];
+        buffer.asIntBuffer().get(userIds);
+        buffer.position(buffer.position() + numberOfRankings * Integer.BYTES);
+
+        float[] rankings = new float[numberOfRankings];
+        buffer.asFloatBuffer().get(rankings);
+        buffer.position(buffer.position() + numberOfRankings * Float.BYTES);
 
-        for (float ranking : getRankings()) {
-            float frequency = getFrequencyForRanking(ranking);
+        RankingCounter counter = new RankingCounter();
+        counter.userRankings = new IntFloatMap(numberOfRankings);
 
-            frequencySum += frequency;
-            weightedSum += frequency * ranking;
+        for (int i = 0; i < numberOfRankings; ++i) {
+            counter.setRanking(userIds[i], rankings[i]);
         }
 
-        return weightedSum / frequencySum;
+        return counter;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,51 @@
+package ds.movies;
+
+import java.io.Serializable;
+
+/**
+ * Aggregate of the rankings of a movie, sent in query responses in place of every user's ranking.
+ * Its size does not depend on how many users have ranked the movie.
+ */
+public class RankingSummary implements Serializable {
+    private int numberOfRankings;
+
+    private float averageRanking;
+
+    /**
+     * histogram[i] is the number of rankings nearest to i * RankingCounter.RANKING_STEP
+     */
+    private int[] histogram;
+
+    RankingSummary(int numberOfRankings, float averageRanking, int[] histogram) {
+        this.numberOfRankings = numberOfRankings;
+        this.averageRanking = averageRanking;
+        this.histogram = histogram;
+    }
+
+    public int getNumberOfRankings() {
+        return numberOfRankings;
+    }
+
+    public float getAverageRanking() {
+        return averageRanking;
+    }
+
+    public int[] getHistogram() {
+        return histogram.clone();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder output = new StringBuilder();
+
+        output.append("[ ");
+        for (int bucket = 0; bucket < histogram.length; ++bucket) {
+            if (histogram[bucket] > 0) {
+                output.append(String.format("%.1f => %d, ", bucket * RankingCounter.RANKING_STEP, histogram[bucket]));
+            }
+        }
+        output.append(" ]");
+
+        return output.toString();
+    }
+}
@@ -0,0 +1,107 @@
+package ds.replica;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single writer that applies every change to a replica's state, one at a time in the order they were submitted.
+ * Any thread can submit an operation without taking a lock; the operations are queued on a lock free queue
+ * which the writer thread drains. Since only the writer changes the state the operations need no locking.
+ */
+class ApplyLoop {
+    /**
+     * Most operations applied in a row before onBatchApplied is run, when the queue never drains.
+     */
+    private static final int MAX_BATCH_SIZE = 64;
+
+    @FunctionalInterface
+    interface Operation<T> {
+        T apply();
+    }
+
+    private final Queue<Runnable> operations = new ConcurrentLinkedQueue<>();
+
+    private final Thread writer;
+
+    /**
+     * Run by the writer after each batch of operations: whenever it has drained the queue, before it waits
+     * for more, or after MAX_BATCH_SIZE operations in a row so it still runs regularly whilst the loop is busy.
+     */
+    private final Runnable onBatchApplied;
+
+    ApplyLoop(String name, Runnable onBatchApplied) {
+        this.onBatchApplied = onBatchApplied;
+
+        writer = new Thread(this::run, name);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues an operation to be applied by the writer.
+     *
+     * @return future completed with the result of the operation once it's applied
+     */
+    <T> CompletableFuture<T> submit(Operation<T> operation) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+
+        operations.offer(() -> {
+            try {
+                result.complete(operation.apply());
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        });
+        LockSupport.unpark(writer);
+
+        return result;
+    }
+
+    /**
+     * Applies an operation and waits for its result.
+     * Operations that call this from the writer itself are applied straight away.
+     */
+    <T> T call(Operation<T> operation) {
+        if (Thread.currentThread() == writer) {
+            return operation.apply();
+        }
+
+        try {
+            return submit(operation).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw e;
+        }
+    }
+
+    private void run() {
+        int batchSize = 0;
+
+        while (true) {
+            Runnable operation = operations.poll();
+
+            if (operation != null) {
+                operation.run();
+
+                if (++batchSize == MAX_BATCH_SIZE) {
+                    onBatchApplied.run();
+                    batchSize = 0;
+                }
+            } else {
+                onBatchApplied.run();
+                batchSize = 0;
+
+                // A submit between the poll and here leaves a permit, so park returns straight away.
+                if (operations.isEmpty()) {
+                    LockSupport.park(this);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package ds.replica;
+
+import ds.movies.CSVReader;
+import ds.movies.Movie;
+import ds.movies.MovieReader;
+import ds.movies.RankingCounter;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The movies and ratings every replica starts from, as read from the movie-data.
+ * It is loaded once per JVM and shared by every replica in it, so it must never be mutated.
+ * Replicas copy a movie's ranking counter before changing it, see ReplicaValue.
+ */
+class BaseDataset {
+    private Map<Integer, Movie> movies = new HashMap<>();
+    private Map<Integer, RankingCounter> rankings = new HashMap<>();
+
+    private BaseDataset() {
+    }
+
+    private static class SharedInstance {
+        private static final BaseDataset DATASET = load();
+    }
+
+    /**
+     * @return the dataset shared by every replica, loading it the first time
+     */
+    static BaseDataset get() {
+        return SharedInstance.DATASET;
+    }
+
+    /**
+     * Reads a new copy of the dataset from the movie-data.
+     */
+    static BaseDataset load() {
+        BaseDataset dataset = new BaseDataset();
+
+        dataset.loadMoviesIntoMemory();
+        dataset.loadMovieRankings();
+
+        return dataset.freeze();
+    }
+
+    private BaseDataset freeze() {
+        movies = Collections.unmodifiableMap(movies);
+        rankings = Collections.unmodifiableMap(rankings);
+
+        return this;
+    }
+
+    Collection<Movie> getMovies() {
+        return movies.values();
+    }
+
+    Movie getMovie(int movieId) {
+        return movies.get(movieId);
+    }
+
+    boolean hasMovie(int movieId) {
+        return movies.containsKey(movieId);
+    }
+
+    /**
+     * @param movieId
+     * @return the read only ranking counter for a movie
+     */
+    RankingCounter getRankings(int movieId) {
+        return rankings.get(movieId);
+    }
+
+    private void loadMoviesIntoMemory() {
+        MovieReader movieReader = new MovieReader();
+
+        while (movieReader.hasNextMovie()) {
+            Movie movie = movieReader.readMovie();
+
+            movies.put(movie.getId(), movie);
+            rankings.put(movie.getId(), new RankingCounter());
+        }
+    }
+
+    private void loadMovieRankings() {
+        CSVReader reader = new CSVReader("./movie-data/ratings.csv");
+
+        while (reader.hasNextLine()) {
+            int userId = reader.readInt();
+            int movieId = reader.readInt();
+            float ranking = reader.readFloat(); // format string is "4.0"
+            reader.endLine();
+
+            rankings.get(movieId).setRanking(userId, ranking);
+        }
+    }
+}
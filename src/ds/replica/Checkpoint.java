@@ -0,0 +1,272 @@
+package ds.replica;
+
+import ds.core.Timestamp;
+import ds.movies.RankingCounter;
+import ds.replica.updatelog.UpdateLogEntry;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import static ds.core.NetworkSimulator.NUMBER_OF_REPLICAS;
+
+/**
+ * The state of a replica at one point in time, written to a binary file so a restarted replica
+ * can load it instead of reading the movie-data and replaying its whole write ahead log.
+ * Only the write ahead log written after the checkpoint needs replaying on top of it.
+ * The same format is used to transfer a replica's state to another that has fallen too far behind.
+ * <p>
+ * Only the ratings of the movies the replica has changed are written. The rest of the value is the base dataset
+ * every replica loads from the movie-data, which the ratings are put back on top of when the checkpoint is read.
+ * <p>
+ * The file is read through a memory mapping. Everything is written with fixed widths, and the ratings
+ * of each movie are written as a column of user ids followed by a column of rankings (see RankingCounter)
+ * so they are copied out in bulk rather than parsed.
+ */
+class Checkpoint {
+    private static final int MAGIC = 0x47445343; // "GDSC"
+    private static final int FORMAT_VERSION = 4;
+
+    /**
+     * First write ahead log segment that isn't reflected in the checkpoint.
+     */
+    private final long nextLogSegment;
+
+    private final Timestamp valueTimestamp;
+
+    private final Timestamp replicaTimestamp;
+
+    /**
+     * Must only be read, since it's shared with queries when taken from a running replica.
+     */
+    private final ReplicaValue value;
+
+    private final ExecutedOperations executedOperations;
+
+    private final List<UpdateLogEntry> updateLogEntries;
+
+    /**
+     * Entries that are yet to be executed, whether or not they're still in the update log.
+     * Every other entry is reflected in value.
+     */
+    private final List<UpdateLogEntry> pendingEntries;
+
+    Checkpoint(long nextLogSegment, Timestamp valueTimestamp, Timestamp replicaTimestamp, ReplicaValue value,
+               ExecutedOperations executedOperations, List<UpdateLogEntry> updateLogEntries,
+               List<UpdateLogEntry> pendingEntries) {
+        this.nextLogSegment = nextLogSegment;
+        this.valueTimestamp = valueTimestamp;
+        this.replicaTimestamp = replicaTimestamp;
+        this.value = value;
+        this.executedOperations = executedOperations;
+        this.updateLogEntries = updateLogEntries;
+        this.pendingEntries = pendingEntries;
+    }
+
+    long getNextLogSegment() {
+        return nextLogSegment;
+    }
+
+    Timestamp getValueTimestamp() {
+        return valueTimestamp;
+    }
+
+    Timestamp getReplicaTimestamp() {
+        return replicaTimestamp;
+    }
+
+    ReplicaValue getValue() {
+        return value;
+    }
+
+    ExecutedOperations getExecutedOperations() {
+        return executedOperations;
+    }
+
+    List<UpdateLogEntry> getUpdateLogEntries() {
+        return updateLogEntries;
+    }
+
+    List<UpdateLogEntry> getPendingEntries() {
+        return pendingEntries;
+    }
+
+    private static void writeEntry(DataOutputStream out, UpdateLogEntry entry, Timestamp base,
+                                   ByteArrayOutputStream entryBytes) throws IOException {
+        entryBytes.reset();
+        entry.writeTo(new DataOutputStream(entryBytes), base);
+
+        out.writeInt(entryBytes.size());
+        entryBytes.writeTo(out);
+    }
+
+    private static UpdateLogEntry readEntry(ByteBuffer buffer, Timestamp base) throws IOException {
+        byte[] entryBytes = new byte[buffer.getInt()];
+        buffer.get(entryBytes);
+
+        return UpdateLogEntry.readFrom(new DataInputStream(new ByteArrayInputStream(entryBytes)), base);
+    }
+
+    private static void writeTimestamp(DataOutput out, Timestamp timestamp) throws IOException {
+        out.writeInt(timestamp.getDimension());
+
+        for (int i = 0; i < timestamp.getDimension(); ++i) {
+            out.writeInt(timestamp.get(i));
+        }
+    }
+
+    private static Timestamp readTimestamp(ByteBuffer buffer) throws IOException {
+        int dimension = buffer.getInt();
+        if (dimension != NUMBER_OF_REPLICAS) {
+            throw new IOException("checkpoint has timestamps for " + dimension + " replicas, not " + NUMBER_OF_REPLICAS);
+        }
+
+        Timestamp timestamp = new Timestamp(dimension);
+
+        for (int i = 0; i < timestamp.getDimension(); ++i) {
+            timestamp.set(i, buffer.getInt());
+        }
+
+        return timestamp;
+    }
+
+    private void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeLong(nextLogSegment);
+
+        writeTimestamp(out, valueTimestamp);
+        writeTimestamp(out, replicaTimestamp);
+
+        List<Integer> changedMovieIds = new ArrayList<>();
+        List<RankingCounter> changedRankings = new ArrayList<>();
+        value.forEachChangedMovie((movieId, rankings) -> {
+            changedMovieIds.add(movieId);
+            changedRankings.add(rankings);
+        });
+
+        out.writeInt(changedMovieIds.size());
+        for (int i = 0; i < changedMovieIds.size(); ++i) {
+            out.writeInt(changedMovieIds.get(i));
+            changedRankings.get(i).writeTo(out);
+        }
+
+        executedOperations.writeTo(out);
+
+        Timestamp base = new Timestamp(valueTimestamp.getDimension());
+        ByteArrayOutputStream entryBytes = new ByteArrayOutputStream();
+
+        // Pending entries are usually in the log as well, so they are just flagged there.
+        Set<UpdateLogEntry> pending = Collections.newSetFromMap(new IdentityHashMap<>());
+        pending.addAll(pendingEntries);
+
+        out.writeInt(updateLogEntries.size());
+        for (UpdateLogEntry entry : updateLogEntries) {
+            writeEntry(out, entry, base, entryBytes);
+            out.writeBoolean(pending.remove(entry));
+        }
+
+        out.writeInt(pending.size());
+        for (UpdateLogEntry entry : pending) {
+            writeEntry(out, entry, base, entryBytes);
+        }
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+        writeTo(dataOut);
+        dataOut.flush();
+    }
+
+    /**
+     * Writes the checkpoint to a temporary file which then replaces file, so file always holds a whole checkpoint.
+     */
+    void writeTo(File file) throws IOException {
+        File temporaryFile = new File(file.getPath() + ".tmp");
+
+        try (FileOutputStream fileOut = new FileOutputStream(temporaryFile)) {
+            writeTo(fileOut);
+
+            fileOut.getChannel().force(true);
+        }
+
+        Files.move(temporaryFile.toPath(), file.toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        // Until the rename is on disk a crash could bring back the previous checkpoint,
+        // whose write ahead log segments are about to be deleted.
+        WriteAheadLog.syncDirectory(file.getAbsoluteFile().getParentFile());
+    }
+
+    static Checkpoint readFrom(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return readFrom(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    static Checkpoint readFrom(ByteBuffer buffer) throws IOException {
+        try {
+            return read(buffer);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("checkpoint is truncated", e);
+        }
+    }
+
+    private static Checkpoint read(ByteBuffer buffer) throws IOException {
+        if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+            throw new IOException("not a checkpoint this version can read");
+        }
+
+        long nextLogSegment = buffer.getLong();
+        Timestamp valueTimestamp = readTimestamp(buffer);
+        Timestamp replicaTimestamp = readTimestamp(buffer);
+
+        ReplicaValue value = new ReplicaValue();
+
+        int numberOfChangedMovies = buffer.getInt();
+        for (int i = 0; i < numberOfChangedMovies; ++i) {
+            int movieId = buffer.getInt();
+
+            if (!value.hasMovie(movieId)) {
+                throw new IOException("checkpoint has ratings of movie " + movieId + " which isn't in the movie-data");
+            }
+
+            value.restoreRankings(movieId, RankingCounter.readFrom(buffer));
+        }
+
+        ExecutedOperations executedOperations = new ExecutedOperations(Replica.EXECUTED_OPERATION_EXPIRY,
+                Replica.EXECUTED_OPERATION_MAX_AGE);
+        executedOperations.readFrom(buffer);
+
+        Timestamp base = new Timestamp(valueTimestamp.getDimension());
+        int numberOfEntries = buffer.getInt();
+        List<UpdateLogEntry> updateLogEntries = new ArrayList<>(numberOfEntries);
+        List<UpdateLogEntry> pendingEntries = new ArrayList<>();
+
+        for (int i = 0; i < numberOfEntries; ++i) {
+            UpdateLogEntry entry = readEntry(buffer, base);
+
+            updateLogEntries.add(entry);
+            if (buffer.get() != 0) {
+                pendingEntries.add(entry);
+            }
+        }
+
+        int numberOfRemovedPendingEntries = buffer.getInt();
+        for (int i = 0; i < numberOfRemovedPendingEntries; ++i) {
+            pendingEntries.add(readEntry(buffer, base));
+        }
+
+        return new Checkpoint(nextLogSegment, valueTimestamp, replicaTimestamp, value,
+                executedOperations, updateLogEntries, pendingEntries);
+    }
+}
@@ -0,0 +1,363 @@
+package ds.replica;
+
+import ds.core.Timestamp;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.UUID;
+
+import static ds.core.NetworkSimulator.NUMBER_OF_REPLICAS;
+
+/**
+ * Set of the uids of every operation a replica has executed, used so an update that arrives more than once
+ * (eg the frontend sends it to 2 replicas) is only executed once.
+ * <p>
+ * Each replica the frontend sent a mutation to (its recipients) creates its own update log entry for it, so each
+ * uid is remembered along with which of those entries we have seen and their sequence numbers. A uid is retired
+ * once we have seen the entry of every recipient and every replica's timestamp shows it has seen them too,
+ * so none of them can be gossiped to us again.
+ * <p>
+ * A recipient may never create an entry, eg it rejected the request or never received it. The frontend only
+ * waits seconds for a recipient to answer, so once the expiry has passed a recipient whose entry we still haven't
+ * seen is taken to have none. The entries we have seen are still waited for.
+ * <p>
+ * A replica that stays offline never advances its timestamp, so nothing it hasn't seen could ever be retired.
+ * So every uid is forgotten once it's older than the maximum age, however far behind some replica is. A replica
+ * that comes back after longer than that may still gossip us an entry for a forgotten operation, which is then
+ * executed again.
+ * <p>
+ * Uids are stored as two longs in an open addressing table rather than as UUID objects.
+ */
+class ExecutedOperations {
+    private static final int MINIMUM_CAPACITY = 16;
+
+    private final long expiryMillis;
+    private final long maxAgeMillis;
+
+    private long[] mostSignificantBits;
+    private long[] leastSignificantBits;
+
+    /**
+     * Bit sets of the replicas the operation was sent to, and of the replicas whose entry for it we have seen.
+     */
+    private int[] recipients;
+    private int[] creators;
+
+    /**
+     * For each seen creator, the value of its component in its entry's timestamp.
+     * The sequence number of creator c for the uid in slot is at slot * NUMBER_OF_REPLICAS + c.
+     */
+    private int[] sequenceNumbers;
+
+    private long[] executedAt;
+    private boolean[] occupied;
+
+    private int size;
+
+    static {
+        if (NUMBER_OF_REPLICAS > Integer.SIZE) {
+            throw new IllegalStateException("recipients and creators hold a bit per replica, so at most "
+                    + Integer.SIZE + " replicas are supported");
+        }
+    }
+
+    /**
+     * @param expiryMillis how long a recipient whose entry we haven't seen may still create one
+     * @param maxAgeMillis how long any operation is remembered at most
+     */
+    ExecutedOperations(long expiryMillis, long maxAgeMillis) {
+        this.expiryMillis = expiryMillis;
+        this.maxAgeMillis = maxAgeMillis;
+        allocate(MINIMUM_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        mostSignificantBits = new long[capacity];
+        leastSignificantBits = new long[capacity];
+        recipients = new int[capacity];
+        creators = new int[capacity];
+        sequenceNumbers = new int[capacity * NUMBER_OF_REPLICAS];
+        executedAt = new long[capacity];
+        occupied = new boolean[capacity];
+    }
+
+    private static int hash(long mostSignificant, long leastSignificant) {
+        long h = mostSignificant * 0x9E3779B97F4A7C15L ^ leastSignificant;
+        h ^= h >>> 32;
+        h *= 0x9E3779B97F4A7C15L;
+        return (int) (h ^ h >>> 29);
+    }
+
+    /**
+     * @return slot holding the uid, or the empty slot where it would be inserted
+     */
+    private int findSlot(long mostSignificant, long leastSignificant) {
+        int mask = occupied.length - 1;
+        int slot = hash(mostSignificant, leastSignificant) & mask;
+
+        while (occupied[slot] && (mostSignificantBits[slot] != mostSignificant
+                || leastSignificantBits[slot] != leastSignificant)) {
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    boolean contains(UUID uid) {
+        return occupied[findSlot(uid.getMostSignificantBits(), uid.getLeastSignificantBits())];
+    }
+
+    /**
+     * @return slot of the uid, inserting it as executed at time if it isn't there
+     */
+    private int insert(long mostSignificant, long leastSignificant, long time) {
+        int slot = findSlot(mostSignificant, leastSignificant);
+
+        if (!occupied[slot]) {
+            occupied[slot] = true;
+            mostSignificantBits[slot] = mostSignificant;
+            leastSignificantBits[slot] = leastSignificant;
+            recipients[slot] = 0;
+            creators[slot] = 0;
+            executedAt[slot] = time;
+            ++size;
+        }
+
+        return slot;
+    }
+
+    private void recordCreator(int slot, int creatorId, int sequenceNumber) {
+        creators[slot] |= 1 << creatorId;
+        sequenceNumbers[slot * NUMBER_OF_REPLICAS + creatorId] = sequenceNumber;
+    }
+
+    private void ensureCapacityFor(int additional) {
+        if (2 * (size + additional) > occupied.length) {
+            rehash(capacityFor(size + additional), 0, null);
+        }
+    }
+
+    /**
+     * Records an entry for an operation, whether it's the one the operation was executed from
+     * or a later one for the same operation from another of its recipients.
+     *
+     * @param uid            of the operation
+     * @param recipients     bit set of the replicas the operation was sent to
+     * @param creatorId      replica that created the update log entry
+     * @param sequenceNumber component creatorId of the entry's update timestamp
+     */
+    void add(UUID uid, int recipients, int creatorId, int sequenceNumber) {
+        ensureCapacityFor(1);
+
+        int slot = insert(uid.getMostSignificantBits(), uid.getLeastSignificantBits(), System.currentTimeMillis());
+
+        this.recipients[slot] |= recipients;
+        recordCreator(slot, creatorId, sequenceNumber);
+    }
+
+    private static int capacityFor(int size) {
+        int capacity = MINIMUM_CAPACITY;
+        while (capacity < 2 * size) {
+            capacity *= 2;
+        }
+
+        return capacity;
+    }
+
+    /**
+     * @param watermarks for each creator, the sequence number every replica has seen up to
+     */
+    private boolean isRetired(int slot, long now, int[] watermarks) {
+        if (executedAt[slot] < now - maxAgeMillis) {
+            return true; // some replica is stuck behind it, see the class comment
+        }
+
+        long expiredBefore = now - expiryMillis;
+        int expectedCreators = recipients[slot] | creators[slot];
+
+        for (int creatorId = 0; creatorId < NUMBER_OF_REPLICAS; ++creatorId) {
+            int creator = 1 << creatorId;
+
+            if ((expectedCreators & creator) == 0) {
+                continue;
+            }
+
+            if ((creators[slot] & creator) != 0) {
+                if (sequenceNumbers[slot * NUMBER_OF_REPLICAS + creatorId] > watermarks[creatorId]) {
+                    return false; // its entry may still be on the way to some replica
+                }
+            } else if (executedAt[slot] >= expiredBefore) {
+                return false; // it may still create an entry
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Moves everything that isn't retired into a table of the given capacity.
+     * @param watermarks see isRetired, or null to keep everything
+     */
+    private void rehash(int capacity, long now, int[] watermarks) {
+        long[] oldMostSignificantBits = mostSignificantBits;
+        long[] oldLeastSignificantBits = leastSignificantBits;
+        int[] oldRecipients = recipients;
+        int[] oldCreators = creators;
+        int[] oldSequenceNumbers = sequenceNumbers;
+        long[] oldExecutedAt = executedAt;
+        boolean[] oldOccupied = occupied;
+
+        allocate(capacity);
+        size = 0;
+
+        for (int oldSlot = 0; oldSlot < oldOccupied.length; ++oldSlot) {
+            if (!oldOccupied[oldSlot]) {
+                continue;
+            }
+
+            int slot = insert(oldMostSignificantBits[oldSlot], oldLeastSignificantBits[oldSlot], oldExecutedAt[oldSlot]);
+            recipients[slot] = oldRecipients[oldSlot];
+            creators[slot] = oldCreators[oldSlot];
+            System.arraycopy(oldSequenceNumbers, oldSlot * NUMBER_OF_REPLICAS,
+                    sequenceNumbers, slot * NUMBER_OF_REPLICAS, NUMBER_OF_REPLICAS);
+
+            if (watermarks != null && isRetired(slot, now, watermarks)) {
+                remove(slot);
+            }
+        }
+    }
+
+    /**
+     * Removes the uid in slot, only used whilst rehashing into an empty table, where nothing has been
+     * inserted after it that could have probed past it.
+     */
+    private void remove(int slot) {
+        occupied[slot] = false;
+        --size;
+    }
+
+    /**
+     * Forgets operations whose entries have all been seen by every replica, or that are older than the maximum age,
+     * see the class comment.
+     *
+     * @param timestampTable known timestamps of all replicas
+     */
+    void retireSeenBy(List<Timestamp> timestampTable) {
+        int[] watermarks = new int[NUMBER_OF_REPLICAS];
+
+        for (int creatorId = 0; creatorId < watermarks.length; ++creatorId) {
+            int watermark = Integer.MAX_VALUE;
+            for (Timestamp timestamp : timestampTable) {
+                watermark = Math.min(watermark, timestamp.get(creatorId));
+            }
+
+            watermarks[creatorId] = watermark;
+        }
+
+        long now = System.currentTimeMillis();
+        int retired = 0;
+
+        for (int slot = 0; slot < occupied.length; ++slot) {
+            if (occupied[slot] && isRetired(slot, now, watermarks)) {
+                ++retired;
+            }
+        }
+
+        if (retired > 0) {
+            rehash(capacityFor(size - retired), now, watermarks);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Adds every operation in other, keeping the later execution time of any in both
+     * and every entry either has seen.
+     */
+    void addAll(ExecutedOperations other) {
+        for (int otherSlot = 0; otherSlot < other.occupied.length; ++otherSlot) {
+            if (!other.occupied[otherSlot]) {
+                continue;
+            }
+
+            ensureCapacityFor(1);
+
+            int slot = insert(other.mostSignificantBits[otherSlot], other.leastSignificantBits[otherSlot],
+                    other.executedAt[otherSlot]);
+            executedAt[slot] = Math.max(executedAt[slot], other.executedAt[otherSlot]);
+            recipients[slot] |= other.recipients[otherSlot];
+
+            for (int creatorId = 0; creatorId < NUMBER_OF_REPLICAS; ++creatorId) {
+                if ((other.creators[otherSlot] & (1 << creatorId)) != 0) {
+                    recordCreator(slot, creatorId, other.sequenceNumbers[otherSlot * NUMBER_OF_REPLICAS + creatorId]);
+                }
+            }
+        }
+    }
+
+    ExecutedOperations copy() {
+        ExecutedOperations copy = new ExecutedOperations(expiryMillis, maxAgeMillis);
+
+        copy.mostSignificantBits = mostSignificantBits.clone();
+        copy.leastSignificantBits = leastSignificantBits.clone();
+        copy.recipients = recipients.clone();
+        copy.creators = creators.clone();
+        copy.sequenceNumbers = sequenceNumbers.clone();
+        copy.executedAt = executedAt.clone();
+        copy.occupied = occupied.clone();
+        copy.size = size;
+
+        return copy;
+    }
+
+    /**
+     * Writes the number of operations then for each its uid, recipients and seen creators,
+     * followed by the sequence number of each seen creator.
+     * When they were executed isn't written, they are treated as executed when they are read back.
+     */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeInt(size);
+
+        for (int slot = 0; slot < occupied.length; ++slot) {
+            if (!occupied[slot]) {
+                continue;
+            }
+
+            out.writeLong(mostSignificantBits[slot]);
+            out.writeLong(leastSignificantBits[slot]);
+            out.writeInt(recipients[slot]);
+            out.writeInt(creators[slot]);
+
+            for (int creatorId = 0; creatorId < NUMBER_OF_REPLICAS; ++creatorId) {
+                if ((creators[slot] & (1 << creatorId)) != 0) {
+                    out.writeInt(sequenceNumbers[slot * NUMBER_OF_REPLICAS + creatorId]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the operations written by writeTo, leaving the buffer positioned after them.
+     */
+    void readFrom(ByteBuffer buffer) {
+        int numberOfOperations = buffer.getInt();
+        ensureCapacityFor(numberOfOperations);
+
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < numberOfOperations; ++i) {
+            int slot = insert(buffer.getLong(), buffer.getLong(), now);
+            recipients[slot] |= buffer.getInt();
+
+            int seenCreators = buffer.getInt();
+            for (int creatorId = 0; creatorId < NUMBER_OF_REPLICAS; ++creatorId) {
+                if ((seenCreators & (1 << creatorId)) != 0) {
+                    recordCreator(slot, creatorId, buffer.getInt());
+                }
+            }
+        }
+    }
+}
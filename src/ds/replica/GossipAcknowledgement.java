@@ -0,0 +1,57 @@
+package ds.replica;
+
+
+import ds.core.Timestamp;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * Reply to a gossip message, acknowledging every entry in it.
+ * It contains the replica timestamp of the receiver after processing the message,
+ * and the incarnation of the receiver so the sender can tell if it has restarted since it last replied.
+ */
+class GossipAcknowledgement implements Externalizable {
+    private long incarnation;
+
+    private Timestamp replicaTimestamp;
+
+    GossipAcknowledgement(long incarnation, Timestamp replicaTimestamp) {
+        this.incarnation = incarnation;
+        this.replicaTimestamp = replicaTimestamp;
+    }
+
+    /**
+     * Only for deserialization.
+     */
+    public GossipAcknowledgement() {
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeLong(incarnation);
+        replicaTimestamp.writeTo(out);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        incarnation = in.readLong();
+        replicaTimestamp = Timestamp.readFrom(in);
+    }
+
+    long getIncarnation() {
+        return incarnation;
+    }
+
+    Timestamp getReplicaTimestamp() {
+        return replicaTimestamp;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[ Gossip acknowledgement. Incarnation %d. Replica Timestamp: %s ]",
+                incarnation, replicaTimestamp);
+    }
+}
@@ -4,28 +4,73 @@ package ds.replica;
 import ds.core.Timestamp;
 import ds.replica.updatelog.UpdateLogEntry;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
 import java.util.List;
 
+import static ds.core.Varints.readVarInt;
+import static ds.core.Varints.writeVarInt;
+
 /**
- * A gossip message sent between replicas R and R' contains 3 things:
+ * A gossip message sent between replicas R and R' contains 4 things:
  * - Sender if of R
+ * - Incarnation of R, which changes each time it restarts
  * - All entries R things R' has not seen
  * - Replica timestamp of R
+ * <p>
+ * Gossip is written in a binary form rather than with default serialization. The timestamps of
+ * entries are written relative to the replica timestamp, which they are usually close to.
  */
-class GossipMessage implements Serializable {
+class GossipMessage implements Externalizable {
     private int senderId;
 
+    private long incarnation;
+
     private List<UpdateLogEntry> updateLogEntries;
 
     private Timestamp replicaTimestamp;
 
-    GossipMessage(int senderId, List<UpdateLogEntry> updateLogEntries, Timestamp replicaTimestamp) {
+    GossipMessage(int senderId, long incarnation, List<UpdateLogEntry> updateLogEntries, Timestamp replicaTimestamp) {
         this.senderId = senderId;
+        this.incarnation = incarnation;
         this.updateLogEntries = updateLogEntries;
         this.replicaTimestamp = replicaTimestamp;
     }
 
+    /**
+     * Only for deserialization.
+     */
+    public GossipMessage() {
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        writeVarInt(out, senderId);
+        out.writeLong(incarnation);
+        replicaTimestamp.writeTo(out);
+
+        writeVarInt(out, updateLogEntries.size());
+        for (UpdateLogEntry entry : updateLogEntries) {
+            entry.writeTo(out, replicaTimestamp);
+        }
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        senderId = readVarInt(in);
+        incarnation = in.readLong();
+        replicaTimestamp = Timestamp.readFrom(in);
+
+        int numberOfEntries = readVarInt(in);
+        updateLogEntries = new ArrayList<>(numberOfEntries);
+        for (int i = 0; i < numberOfEntries; ++i) {
+            updateLogEntries.add(UpdateLogEntry.readFrom(in, replicaTimestamp));
+        }
+    }
+
     List<UpdateLogEntry> getUpdateLogEntries() {
         return updateLogEntries;
     }
@@ -38,6 +83,10 @@ class GossipMessage implements Serializable {
         return senderId;
     }
 
+    long getIncarnation() {
+        return incarnation;
+    }
+
     @Override
     public String toString() {
         return String.format("[ Gossip. Sender %d. Replica Timestamp: %s. #Updates %d ]",
@@ -0,0 +1,142 @@
+package ds.replica;
+
+/**
+ * Map from int to V stored as a trie of up to 32 way nodes, taking 5 bits of the key at each level.
+ * A snapshot of the map shares every node with it, and a node shared with a snapshot is copied the first time
+ * the map changes it, so taking a snapshot is constant time and a put copies at most one path of the trie.
+ * <p>
+ * Nodes record which generation of the map created them; nodes from the current generation aren't shared
+ * with any snapshot so they are changed in place. Snapshots are read only, and are reclaimed as soon as
+ * nothing is reading them since nothing else refers to them.
+ */
+class PersistentIntMap<V> {
+    private static final int BITS_PER_LEVEL = 5;
+    private static final int LEVEL_MASK = (1 << BITS_PER_LEVEL) - 1;
+
+    private static final class Leaf {
+        private final int key;
+        private final Object value;
+
+        private Leaf(int key, Object value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Holds a slot for each 5 bit index present in bitmap, in index order. A slot is a Node or a Leaf.
+     */
+    private static final class Node {
+        private final Object generation;
+        private int bitmap;
+        private Object[] slots;
+
+        private Node(Object generation, int bitmap, Object[] slots) {
+            this.generation = generation;
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+
+        private Node editableBy(Object generation) {
+            return this.generation == generation ? this : new Node(generation, bitmap, slots.clone());
+        }
+    }
+
+    private Node root;
+
+    /**
+     * Generation of nodes that may be changed in place, null for a snapshot.
+     */
+    private Object generation;
+
+    PersistentIntMap() {
+        this(null, new Object());
+    }
+
+    private PersistentIntMap(Node root, Object generation) {
+        this.root = root;
+        this.generation = generation;
+    }
+
+    private static int indexAt(int key, int shift) {
+        return (key >>> shift) & LEVEL_MASK;
+    }
+
+    private static int slotOf(int bitmap, int bit) {
+        return Integer.bitCount(bitmap & (bit - 1));
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(int key) {
+        Node node = root;
+
+        for (int shift = 0; node != null; shift += BITS_PER_LEVEL) {
+            int bit = 1 << indexAt(key, shift);
+
+            if ((node.bitmap & bit) == 0) {
+                return null;
+            }
+
+            Object slot = node.slots[slotOf(node.bitmap, bit)];
+
+            if (slot instanceof Leaf) {
+                Leaf leaf = (Leaf) slot;
+                return leaf.key == key ? (V) leaf.value : null;
+            }
+
+            node = (Node) slot;
+        }
+
+        return null;
+    }
+
+    void put(int key, V value) {
+        if (generation == null) {
+            throw new UnsupportedOperationException("a snapshot can't be changed");
+        }
+
+        Node node = root == null ? new Node(generation, 0, new Object[0]) : root;
+        root = put(node, 0, new Leaf(key, value));
+    }
+
+    private Node put(Node node, int shift, Leaf leaf) {
+        node = node.editableBy(generation);
+
+        int bit = 1 << indexAt(leaf.key, shift);
+        int slot = slotOf(node.bitmap, bit);
+
+        if ((node.bitmap & bit) == 0) {
+            Object[] slots = new Object[node.slots.length + 1];
+            System.arraycopy(node.slots, 0, slots, 0, slot);
+            System.arraycopy(node.slots, slot, slots, slot + 1, node.slots.length - slot);
+            slots[slot] = leaf;
+
+            node.slots = slots;
+            node.bitmap |= bit;
+        } else if (node.slots[slot] instanceof Node) {
+            node.slots[slot] = put((Node) node.slots[slot], shift + BITS_PER_LEVEL, leaf);
+        } else {
+            Leaf existing = (Leaf) node.slots[slot];
+
+            if (existing.key == leaf.key) {
+                node.slots[slot] = leaf;
+            } else {
+                // Two keys share this index, so push them both a level down where their next bits decide.
+                Node child = new Node(generation, 0, new Object[0]);
+                child = put(child, shift + BITS_PER_LEVEL, existing);
+                node.slots[slot] = put(child, shift + BITS_PER_LEVEL, leaf);
+            }
+        }
+
+        return node;
+    }
+
+    /**
+     * @return read only map of the current mappings, unaffected by later puts to this map
+     */
+    PersistentIntMap<V> snapshot() {
+        generation = new Object(); // Every existing node is now shared so must be copied to change it.
+
+        return new PersistentIntMap<>(root, null);
+    }
+}
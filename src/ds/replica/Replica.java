@@ -4,22 +4,55 @@ import ds.client.RequestParameters;
 import ds.core.NetworkSimulator;
 import ds.core.StubLoader;
 import ds.core.Timestamp;
+import ds.frontend.BatchMutationResponse;
+import ds.frontend.BatchQueryResponse;
+import ds.frontend.BatchRequest;
 import ds.frontend.MutationResponse;
 import ds.frontend.QueryResponse;
 import ds.frontend.Request;
+import ds.movies.MovieDetails;
 import ds.replica.updatelog.UpdateLog;
 import ds.replica.updatelog.UpdateLogEntry;
 
-import java.io.NotActiveException;
+import java.io.*;
 import java.rmi.RemoteException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
 
 import static ds.core.NetworkSimulator.NUMBER_OF_REPLICAS;
 
 /**
  * The replica class is the core component of the distributed system.
+ * <p>
+ * Everything that changes the replica's state, ie mutations, gossip and catching up, is applied one at a time
+ * by its apply loop. Queries don't go through the loop, they read the latest published snapshot of the value.
  */
-public class Replica extends TimerTask implements ReplicaApi {
+public class Replica implements ReplicaApi, Runnable {
+    /**
+     * How long an executed operation is remembered whilst one of the replicas it was sent to hasn't created
+     * an entry for it, eg because it rejected the request.
+     */
+    static final long EXECUTED_OPERATION_EXPIRY = 5 * 60 * 1000; // milliseconds
+
+    /**
+     * How long an executed operation is remembered at most, even if some replica never catches up with its entries,
+     * eg because it stays offline.
+     */
+    static final long EXECUTED_OPERATION_MAX_AGE = 30 * 60 * 1000; // milliseconds
+
+    /**
+     * How long a query waits for other replicas to send it the updates it needs.
+     */
+    private static final long CATCHUP_TIMEOUT = 2000; // milliseconds
+
+    /**
+     * How long value can stay behind the update log without advancing before we assume the entries it is
+     * waiting for are gone from every log, and fetch another replica's state instead.
+     */
+    private static final long STALLED_VALUE_TIMEOUT = 30 * 1000; // milliseconds
+
     private int replicaId;
 
     /**
@@ -36,7 +69,7 @@ public class Replica extends TimerTask implements ReplicaApi {
     /**
      * Current status of the replica
      */
-    private ReplicaStatus status = ReplicaStatus.ACTIVE;
+    private volatile ReplicaStatus status = ReplicaStatus.ACTIVE;
 
     /**
      * Timestamp that reflects updates in value
@@ -46,15 +79,51 @@ public class Replica extends TimerTask implements ReplicaApi {
     /**
      * Actual value we're querying and mutating
      */
-    private ReplicaValue value = new ReplicaValue();
+    private ReplicaValue value;
+
+    /**
+     * Latest snapshot of value and valueTimestamp, which queries read from.
+     */
+    private volatile ValueSnapshot snapshot;
+
+    /**
+     * Whether value has changed since the last snapshot was published.
+     */
+    private boolean valueChanged;
+
+    /**
+     * Applies every change to the state above, so only its thread touches it.
+     */
+    private ApplyLoop applyLoop;
+
+    /**
+     * Keeps the state on disk so it survives a restart, null if the replica keeps everything in memory.
+     */
+    private ReplicaStorage storage;
+
+    /**
+     * State prepared for other replicas to fetch, and state fetched from them.
+     */
+    private StateTransfers stateTransfers;
+
+    /**
+     * Set whilst we are fetching another replica's state, so only one transfer happens at a time.
+     */
+    private AtomicBoolean isTransferringState = new AtomicBoolean();
+
+    /**
+     * Value timestamp last seen by the gossip thread, and since when it hasn't advanced.
+     */
+    private Timestamp lastSeenValueTimestamp;
+    private long valueStalledSince;
 
     private StubLoader stubLoader;
 
     /**
-     * All operations we have executed
-     * In real world we would clear these out say 60 seconds after having been added
+     * Operations we have executed that could still reach us again through gossip
      */
-    private Set<UUID> executedOperations = new HashSet<>();
+    private ExecutedOperations executedOperations = new ExecutedOperations(EXECUTED_OPERATION_EXPIRY,
+            EXECUTED_OPERATION_MAX_AGE);
 
     /**
      * Estimated replica timestamps of all replicas which is updated
@@ -62,13 +131,167 @@ public class Replica extends TimerTask implements ReplicaApi {
      */
     private List<Timestamp> timestampTable = new ArrayList<>();
 
+    /**
+     * For each replica, the update log position up to which it has acknowledged our gossip.
+     * Only entries added after it need to be sent again.
+     */
+    private long[] acknowledgedLogPositions = new long[NUMBER_OF_REPLICAS];
+
+    /**
+     * Identifies this run of the replica, it is different every time the replica starts.
+     * Sent with gossip and acknowledgements so other replicas can tell a restart from a message that arrived late.
+     */
+    private final long incarnation = newIncarnation();
+
+    /**
+     * Last incarnation heard from each replica, 0 if we haven't heard from it yet.
+     */
+    private long[] knownIncarnations = new long[NUMBER_OF_REPLICAS];
+
+    /**
+     * Sends gossip and catch up requests to every other replica at once, so one slow replica doesn't hold up the others.
+     */
+    private ExecutorService gossipExecutor;
+
+    /**
+     * Gossip sent to each replica which has not yet been answered.
+     * A replica is skipped whilst its last gossip is unanswered, and an unanswered call fails after
+     * StubLoader.RESPONSE_TIMEOUT, so a hung replica ties up at most one thread and only for that long.
+     */
+    private Future<?>[] inFlightGossip = new Future<?>[NUMBER_OF_REPLICAS];
+
     public Replica(int replicaId) throws RemoteException {
+        this(replicaId, null);
+    }
+
+    /**
+     * @param replicaId
+     * @param storageDirectory directory to keep checkpoints and the write ahead log in, or null to keep
+     *                         everything in memory. If it holds them from a previous run the replica recovers
+     *                         its state from them.
+     * @throws RemoteException
+     */
+    public Replica(int replicaId, File storageDirectory) throws RemoteException {
         this.replicaId = replicaId;
         stubLoader = new StubLoader();
+        stateTransfers = new StateTransfers(replicaId);
+        value = new ReplicaValue();
+
+        if (storageDirectory != null) {
+            storage = new ReplicaStorage(replicaId, storageDirectory);
+            recover();
+        }
+
+        snapshot = new ValueSnapshot(valueTimestamp.copy(), value.snapshot());
+        applyLoop = new ApplyLoop("replica-" + replicaId + "-apply", this::publishSnapshot);
+
+        gossipExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "replica-" + replicaId + "-gossip");
+            thread.setDaemon(true);
+            return thread;
+        });
 
         for (int i = 0; i < NUMBER_OF_REPLICAS; ++i) {
             timestampTable.add(new Timestamp(NUMBER_OF_REPLICAS));
         }
+        timestampTable.set(replicaId, replicaTimestamp);
+    }
+
+    private static long newIncarnation() {
+        long incarnation;
+        do {
+            incarnation = ThreadLocalRandom.current().nextLong();
+        } while (incarnation == 0);
+
+        return incarnation;
+    }
+
+    /**
+     * Rebuilds the state the replica had before it restarted. Called by the storage as it reads it back.
+     */
+    private class Recovery implements ReplicaStorage.RecoveryTarget {
+        @Override
+        public void loadCheckpoint(Checkpoint checkpoint) {
+            value = checkpoint.getValue();
+            valueTimestamp = checkpoint.getValueTimestamp();
+            replicaTimestamp = checkpoint.getReplicaTimestamp();
+            executedOperations = checkpoint.getExecutedOperations();
+
+            checkpoint.getUpdateLogEntries().forEach(updateLog::restore);
+        }
+
+        @Override
+        public void restoreEntry(UpdateLogEntry entry) {
+            updateLog.restore(entry);
+            replicaTimestamp.merge(entry.getUpdateTimestamp());
+        }
+
+        @Override
+        public void applyEntry(UpdateLogEntry entry) {
+            Replica.this.applyEntry(entry);
+        }
+
+        @Override
+        public void skipDuplicateEntry(UpdateLogEntry entry) {
+            Replica.this.skipDuplicateEntry(entry);
+        }
+
+        @Override
+        public void schedulePendingEntry(UpdateLogEntry entry) {
+            updateLog.schedule(entry);
+        }
+    }
+
+    /**
+     * Rebuilds the update log, value and timestamps from storage, executing the entries in the same order as before.
+     * @throws RemoteException if the checkpoint or log can't be read
+     */
+    private void recover() throws RemoteException {
+        storage.recover(new Recovery());
+
+        executeUpdatesUntilValueTimestampStabilises();
+
+        if (updateLog.getLastPosition() > 0) {
+            System.out.printf("Replica %d recovered %d updates\n", replicaId, updateLog.getLastPosition());
+        }
+    }
+
+    /**
+     * Starts a new write ahead log segment and captures the state it starts from.
+     * Run by the apply loop, the captured state is only read afterwards so it can be written in the background.
+     */
+    private Checkpoint takeCheckpoint() {
+        return captureState(storage.startNextLogSegment());
+    }
+
+    /**
+     * Captures the replica's state. Run by the apply loop, the captured state is only read afterwards.
+     * @param nextLogSegment write ahead log segment that continues from the state
+     */
+    private Checkpoint captureState(long nextLogSegment) {
+        return new Checkpoint(nextLogSegment, valueTimestamp.copy(), replicaTimestamp.copy(), value.snapshot(),
+                executedOperations.copy(), updateLog.anyEntryThat(entry -> true), updateLog.pendingEntries());
+    }
+
+    private void checkpointIfDue() {
+        if (storage != null) {
+            storage.checkpointIfDue(() -> applyLoop.call(this::takeCheckpoint));
+        }
+    }
+
+    /**
+     * Waits until the changes made so far are on disk, so they won't be lost if the replica restarts.
+     */
+    private void awaitDurable() throws RemoteException {
+        if (storage != null) {
+            storage.awaitDurable();
+        }
+    }
+
+    private void addToUpdateLog(UpdateLogEntry entry) {
+        if (updateLog.add(entry) && storage != null) {
+            storage.logEntryAdded(entry);
+        }
     }
 
     private void randomlyChangeStatus() throws RemoteException {
@@ -90,8 +313,6 @@ public class Replica extends TimerTask implements ReplicaApi {
 
     @Override
     public ReplicaStatus requestStatus() throws RemoteException {
-        randomlyChangeStatus();
-
         return status;
     }
 
@@ -113,7 +334,41 @@ public class Replica extends TimerTask implements ReplicaApi {
     private void mergeUpdateLog(List<UpdateLogEntry> entries) {
         entries.stream()
                 .filter(entry -> !entry.getUpdateTimestamp().isBeforeOrEqual(replicaTimestamp))
-                .forEach(updateLog::add);
+                .forEach(this::addToUpdateLog);
+    }
+
+    /**
+     * Records a replica timestamp of another replica in the timestamp table.
+     * Gossip and acknowledgements may arrive out of order, so it is merged with what we already knew.
+     * @param otherReplicaId
+     * @param otherReplicaTimestamp
+     */
+    private void learnReplicaTimestamp(int otherReplicaId, Timestamp otherReplicaTimestamp) {
+        Timestamp knownTimestamp = timestampTable.get(otherReplicaId).copy();
+        knownTimestamp.merge(otherReplicaTimestamp);
+
+        timestampTable.set(otherReplicaId, knownTimestamp);
+    }
+
+    /**
+     * Records the incarnation of another replica.
+     * If it has changed the replica has restarted and may have lost updates it once had, so what we know
+     * about it is replaced rather than merged, and our gossip to it starts again from the beginning of the log.
+     * @param otherReplicaId
+     * @param otherIncarnation incarnation it sent
+     * @param otherReplicaTimestamp replica timestamp it sent
+     */
+    private void learnIncarnation(int otherReplicaId, long otherIncarnation, Timestamp otherReplicaTimestamp) {
+        if (knownIncarnations[otherReplicaId] == otherIncarnation) {
+            return;
+        }
+
+        if (knownIncarnations[otherReplicaId] != 0) {
+            acknowledgedLogPositions[otherReplicaId] = 0;
+        }
+
+        knownIncarnations[otherReplicaId] = otherIncarnation;
+        timestampTable.set(otherReplicaId, otherReplicaTimestamp.copy());
     }
 
     /**
@@ -124,33 +379,246 @@ public class Replica extends TimerTask implements ReplicaApi {
         replicaTimestamp.merge(message.getReplicaTimestamp());
 
         timestampTable.set(replicaId, replicaTimestamp);
-        timestampTable.set(message.getSenderId(), message.getReplicaTimestamp());
+        learnIncarnation(message.getSenderId(), message.getIncarnation(), message.getReplicaTimestamp());
+        learnReplicaTimestamp(message.getSenderId(), message.getReplicaTimestamp());
     }
 
     private void clearUpdateLog() {
         updateLog.removeOutdatedEntries(timestampTable);
+        executedOperations.retireSeenBy(timestampTable);
+    }
+
+    /**
+     * Other replicas only cache our status, so requests from them are refused whilst we are offline.
+     * The failure tells them to refresh the status they have cached.
+     */
+    private void refuseIfOffline() throws RemoteException {
+        if (status == ReplicaStatus.OFFLINE) {
+            throw new RemoteException("replica " + replicaId + " is offline");
+        }
     }
 
     @Override
-    public void processGossipMessage(GossipMessage message) throws RemoteException {
+    public GossipAcknowledgement processGossipMessage(GossipMessage message) throws RemoteException {
+        refuseIfOffline();
+
 //        System.out.printf("Replica %d got gossip from %d of size %d\n", replicaId, message.getSenderId(), message.getUpdateLogEntries().size());
-        mergeUpdateLog(message.getUpdateLogEntries());
-        updateTimestamps(message);
+        GossipAcknowledgement acknowledgement = applyLoop.call(() -> {
+            mergeUpdateLog(message.getUpdateLogEntries());
+            updateTimestamps(message);
 
-        executeUpdatesUntilValueTimestampStabilises();
+            executeUpdatesUntilValueTimestampStabilises();
+
+            clearUpdateLog();
+
+            return new GossipAcknowledgement(incarnation, replicaTimestamp.copy());
+        });
 
-        clearUpdateLog();
+        // The sender may drop the entries once we acknowledge them, so they must not be lost first.
+        awaitDurable();
+
+        return acknowledgement;
     }
 
     @Override
     public List<UpdateLogEntry> findAllRequiredUpdates(Timestamp timestamp) throws RemoteException {
+        refuseIfOffline();
+
         return updateLog.anyEntryThat(entry -> timestamp.isAfter(entry.getUpdateRequest().getTimestamp()));
     }
 
+    @Override
+    public StateTransfer beginStateTransfer() throws RemoteException {
+        refuseIfOffline();
+
+        System.out.printf("Replica %d is preparing a state transfer...\n", replicaId);
+
+        return stateTransfers.prepare(applyLoop.call(() -> captureState(storage != null ? storage.getLogSegment() : 0)));
+    }
+
+    @Override
+    public byte[] fetchStateChunk(long transferId, int offset, int length) throws RemoteException {
+        return stateTransfers.fetchChunk(transferId, offset, length);
+    }
+
+    /**
+     * Replaces our value with state transferred from another replica.
+     * Run by the apply loop. The state is only installed if its value timestamp is ahead of ours.
+     * <p>
+     * The transferred value reflects every entry up to its value timestamp except the ones still pending where
+     * it came from. Our own entries, including pending ones already removed from the log as outdated, are either
+     * reflected in it and mustn't be executed again, or are still to be executed on top of it.
+     * @param state transferred state
+     * @return whether the state was installed
+     */
+    private boolean installState(Checkpoint state) {
+        if (valueTimestamp.compare(state.getValueTimestamp()) != Timestamp.Ordering.BEFORE) {
+            return false;
+        }
+
+        Timestamp installedTimestamp = state.getValueTimestamp();
+
+        Map<Long, UpdateLogEntry> pendingEntries = new LinkedHashMap<>();
+        for (UpdateLogEntry entry : state.getPendingEntries()) {
+            pendingEntries.put(ReplicaStorage.entryKey(entry), entry);
+        }
+
+        value = state.getValue();
+        valueTimestamp = installedTimestamp;
+        valueChanged = true;
+
+        // What we executed is replaced along with value, the transferred value may not reflect all of it.
+        executedOperations = state.getExecutedOperations();
+
+        List<UpdateLogEntry> ourEntries = updateLog.anyEntryThat(entry -> true);
+        ourEntries.addAll(updateLog.pendingEntries());
+
+        for (UpdateLogEntry entry : ourEntries) {
+            long key = ReplicaStorage.entryKey(entry);
+
+            if (pendingEntries.containsKey(key)) {
+                continue;
+            }
+
+            if (entry.getUpdateTimestamp().isBeforeOrEqual(installedTimestamp)) {
+                recordExecutedEntry(entry);
+            } else {
+                pendingEntries.put(key, entry);
+            }
+        }
+
+        for (UpdateLogEntry entry : state.getUpdateLogEntries()) {
+            if (!entry.getUpdateTimestamp().isBeforeOrEqual(replicaTimestamp)) {
+                addToUpdateLog(entry);
+            }
+        }
+
+        updateLog.replacePendingEntries(pendingEntries.values());
+        replicaTimestamp.merge(state.getReplicaTimestamp());
+        replicaTimestamp.merge(valueTimestamp);
+
+        executeUpdatesUntilValueTimestampStabilises();
+
+        return true;
+    }
+
+    /**
+     * Installs state transferred from another replica, see installState.
+     * @return whether the state was installed
+     */
+    boolean install(Checkpoint state) {
+        return applyLoop.call(() -> installState(state));
+    }
+
+    /**
+     * Fetches another replica's state in chunks and installs it, for when we are too far behind
+     * to catch up from the update logs.
+     * @param otherReplicaId replica to fetch the state of
+     * @return whether the state was installed, it isn't if it isn't ahead of ours
+     */
+    private boolean transferStateFrom(int otherReplicaId) {
+        if (!isTransferringState.compareAndSet(false, true)) {
+            return false;
+        }
+
+        try {
+            ReplicaApi replica = stubLoader.getReplicaStub(otherReplicaId);
+            StateTransfer transfer = replica.beginStateTransfer();
+
+            if (snapshot.getValueTimestamp().compare(transfer.getValueTimestamp()) != Timestamp.Ordering.BEFORE) {
+                return false;
+            }
+
+            System.out.printf("Replica %d is fetching the state of replica %d...\n", replicaId, otherReplicaId);
+
+            Checkpoint transferredState = stateTransfers.fetchFrom(replica, transfer);
+            boolean installed = install(transferredState);
+
+            if (installed && storage != null) {
+                // The write ahead log only makes sense on top of the installed state, so checkpoint it.
+                storage.checkpointInBackground(() -> applyLoop.call(this::takeCheckpoint));
+            }
+
+            return installed;
+        } catch (NotActiveException e) {
+            return false;
+        } catch (IOException e) {
+            if (e instanceof RemoteException) {
+                stubLoader.refreshStatus(otherReplicaId);
+            }
+
+            System.out.printf("Replica %d failed to transfer state from replica %d: %s\n",
+                    replicaId, otherReplicaId, e.getMessage());
+            return false;
+        } finally {
+            isTransferringState.set(false);
+        }
+    }
+
+    /**
+     * Fetches another replica's state if value has been stuck behind the update log for too long,
+     * which happens if the entries it's waiting for have been removed from every replica's log.
+     */
+    private void transferStateIfValueStalled() {
+        Timestamp currentValueTimestamp = snapshot.getValueTimestamp();
+        Timestamp knownTimestamp = applyLoop.call(replicaTimestamp::copy);
+        long now = System.currentTimeMillis();
+
+        if (!knownTimestamp.isAfter(currentValueTimestamp)
+                || !currentValueTimestamp.equals(lastSeenValueTimestamp)) {
+            lastSeenValueTimestamp = currentValueTimestamp;
+            valueStalledSince = now;
+            return;
+        }
+
+        if (now - valueStalledSince < STALLED_VALUE_TIMEOUT) {
+            return;
+        }
+
+        valueStalledSince = now;
+        transferStateFromAnyReplica();
+    }
+
+    private void transferStateFromAnyReplica() {
+        for (int otherReplicaId = 0; otherReplicaId < NUMBER_OF_REPLICAS; ++otherReplicaId) {
+            if (otherReplicaId != replicaId && transferStateFrom(otherReplicaId)) {
+                return;
+            }
+        }
+    }
+
     private boolean haveProcessedRequest(Request request) {
         return executedOperations.contains(request.getUid());
     }
 
+    private void recordExecutedEntry(UpdateLogEntry entry) {
+        Request request = entry.getUpdateRequest();
+
+        executedOperations.add(request.getUid(), request.getRecipients(), entry.getReplicaId(),
+                entry.getUpdateTimestamp().get(entry.getReplicaId()));
+    }
+
+    private void applyEntry(UpdateLogEntry entry) {
+        value.setRanking(entry.getUpdateRequest().getParameters());
+        valueTimestamp.merge(entry.getUpdateTimestamp());
+        recordExecutedEntry(entry);
+        valueChanged = true;
+    }
+
+    /**
+     * The frontend sent the request to another replica too and we executed its entry for it,
+     * so this entry's effect is already in value. Entries that depend on it must not wait forever.
+     */
+    private void skipDuplicateEntry(UpdateLogEntry entry) {
+        if (entry.getUpdateTimestamp().isAfter(valueTimestamp)) {
+            valueTimestamp.merge(entry.getUpdateTimestamp());
+            valueChanged = true;
+        }
+
+        // The uid can't be forgotten until this entry has reached every replica as well.
+        recordExecutedEntry(entry);
+    }
+
     /**
      * Executes the update if it hasn't seen it before
      * @param entry to be executed
@@ -158,76 +626,200 @@ public class Replica extends TimerTask implements ReplicaApi {
      */
     private boolean executeEntry(UpdateLogEntry entry) {
         if (haveProcessedRequest(entry.getUpdateRequest())) {
+            skipDuplicateEntry(entry);
+
+            if (storage != null) {
+                storage.logEntrySkipped(entry);
+            }
             return false;
         }
 
-        Request updateRequest = entry.getUpdateRequest();
+        applyEntry(entry);
 
-        value.setRanking(updateRequest.getParameters());
-        valueTimestamp.merge(entry.getUpdateTimestamp());
-        executedOperations.add(updateRequest.getUid());
+        if (storage != null) {
+            storage.logEntryExecuted(entry);
+        }
 
         return true;
     }
 
-    private boolean executeStableUpdates() {
-        return updateLog.getStableEntries(valueTimestamp).stream()
-                .anyMatch(this::executeEntry);
+    private void executeUpdatesUntilValueTimestampStabilises() {
+        // Executing an entry advances valueTimestamp, which may make further entries stable.
+        UpdateLogEntry entry;
+        while ((entry = updateLog.pollStableEntry(valueTimestamp)) != null) {
+            executeEntry(entry);
+        }
     }
 
-    private void executeUpdatesUntilValueTimestampStabilises() {
-        while (updateLog.hasStableEntry(valueTimestamp) && executeStableUpdates()) ;
+    /**
+     * Publishes a snapshot of value for queries to read, if it has changed since the last one.
+     * Called by the apply loop after each batch of operations, so a burst of updates is published once.
+     * @return the latest snapshot
+     */
+    private ValueSnapshot publishSnapshot() {
+        if (valueChanged) {
+            snapshot = new ValueSnapshot(valueTimestamp.copy(), value.snapshot());
+            valueChanged = false;
+        }
+
+        return snapshot;
     }
 
     /**
-     * Synchronizes the update log with a replica
+     * Fetches the updates we are missing from a replica
      * @param replicaId replica to synchronize with
      * @param requiredTimestamp timestamp to catchup to
      * @throws NotActiveException if replica is offline
      * @throws RemoteException
      */
-    private void catchupUpdateLog(int replicaId, Timestamp requiredTimestamp) throws NotActiveException, RemoteException {
-        ReplicaApi replica = stubLoader.getReplicaStub(replicaId);
+    private List<UpdateLogEntry> fetchRequiredUpdates(int replicaId, Timestamp requiredTimestamp)
+            throws NotActiveException, RemoteException {
+        ReplicaApi replica;
+        try {
+            replica = stubLoader.getReplicaStub(replicaId);
+        } catch (NotActiveException e) {
+            // A query is waiting on this, so make sure it really is offline rather than trusting the cache.
+            if (stubLoader.refreshStatus(replicaId) == ReplicaStatus.OFFLINE) {
+                throw e;
+            }
+
+            replica = stubLoader.getReplicaStub(replicaId);
+        }
+
+        return replica.findAllRequiredUpdates(requiredTimestamp);
+    }
 
-        List<UpdateLogEntry> entries = replica.findAllRequiredUpdates(requiredTimestamp);
+    /**
+     * Works out the value timestamp that executing some entries would reach.
+     * An entry only counts once the updates it depends on are covered, as a replica may send an entry
+     * without the earlier ones it depends on, if it has already removed them from its log.
+     * @param valueTimestamp timestamp to start from
+     * @param entries entries that could be executed
+     * @return the timestamp reached
+     */
+    private static Timestamp stabiliseTimestamp(Timestamp valueTimestamp, Collection<UpdateLogEntry> entries) {
+        Timestamp stableTimestamp = valueTimestamp.copy();
+        List<UpdateLogEntry> waiting = new ArrayList<>(entries);
+
+        boolean executedAny = true;
+        while (executedAny) {
+            executedAny = waiting.removeIf(entry -> {
+                if (entry.getUpdateRequest().getTimestamp().isBeforeOrEqual(stableTimestamp)) {
+                    stableTimestamp.merge(entry.getUpdateTimestamp());
+                    return true;
+                }
+
+                return false;
+            });
+        }
 
-        entries.forEach(updateLog::add);
+        return stableTimestamp;
     }
 
     /**
-     * Makes value as up to date as possible with a given timestamp
+     * Makes value as up to date as possible with a given timestamp.
+     * Any replica may have the updates we need through gossip, so every other replica is asked at once
+     * and we stop waiting as soon as the updates received can be executed up to the timestamp, or at the deadline.
+     * The updates are fetched outside of the apply loop so it isn't held up by the network.
      * @param requiredTimestamp to be up to date with
-     * @throws RemoteException
+     * @param snapshot snapshot that was behind requiredTimestamp
+     * @return a snapshot including any updates we caught up with
      */
-    private void catchupValue(Timestamp requiredTimestamp) throws RemoteException {
-        for (int i = 0; i < valueTimestamp.getDimension(); ++i) {
-            if (valueTimestamp.get(i) < requiredTimestamp.get(i)) {
+    private ValueSnapshot catchupValue(Timestamp requiredTimestamp, ValueSnapshot snapshot) {
+        CompletionService<List<UpdateLogEntry>> responses = new ExecutorCompletionService<>(gossipExecutor);
+        List<Future<List<UpdateLogEntry>>> requests = new ArrayList<>();
+
+        for (int i = 0; i < NUMBER_OF_REPLICAS; ++i) {
+            if (i != replicaId) {
+                int otherReplicaId = i;
+                requests.add(responses.submit(() -> fetchRequiredUpdates(otherReplicaId, requiredTimestamp)));
+            }
+        }
+
+        // Replicas hold many of the same entries, so they are merged by update timestamp which is unique to an entry.
+        // Not by request uid, as each replica the frontend sent a mutation to made its own entry for it.
+        Map<Timestamp, UpdateLogEntry> entries = new LinkedHashMap<>();
+        Timestamp coveredTimestamp = snapshot.getValueTimestamp().copy();
+        long deadline = System.currentTimeMillis() + CATCHUP_TIMEOUT;
+
+        try {
+            for (int waiting = requests.size(); waiting > 0 && requiredTimestamp.isAfter(coveredTimestamp); --waiting) {
+                long timeout = Math.max(0, deadline - System.currentTimeMillis());
+                Future<List<UpdateLogEntry>> response = responses.poll(timeout, TimeUnit.MILLISECONDS);
+
+                if (response == null) {
+                    break; // past the deadline
+                }
+
                 try {
-                    catchupUpdateLog(i, requiredTimestamp);
-                } catch (NotActiveException e) {
-                    System.out.println("Failed to contact the replica who had our required updates\n" +
-                            "in the real world we would ask other replicas for the other updates\n" +
-                            "however I feel this is unlikely in our simulations and perhaps our the scope of this course");
+                    for (UpdateLogEntry entry : response.get()) {
+                        entries.putIfAbsent(entry.getUpdateTimestamp(), entry);
+                    }
+
+                    coveredTimestamp = stabiliseTimestamp(snapshot.getValueTimestamp(), entries.values());
+                } catch (ExecutionException e) {
+                    // The replica is offline or unreachable, the others may still have the updates.
                 }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // Cancelling can't interrupt a call already waiting on a replica, those fail by themselves
+            // after StubLoader.RESPONSE_TIMEOUT. It stops calls that haven't started yet.
+            requests.forEach(request -> request.cancel(true));
         }
 
-        executeUpdatesUntilValueTimestampStabilises();
+        ValueSnapshot caughtUp = applyLoop.call(() -> {
+            mergeUpdateLog(new ArrayList<>(entries.values()));
+
+            executeUpdatesUntilValueTimestampStabilises();
+
+            return publishSnapshot();
+        });
+
+        if (requiredTimestamp.isAfter(caughtUp.getValueTimestamp())) {
+            System.out.printf("Replica %d could only catch up to %s of %s\n",
+                    replicaId, caughtUp.getValueTimestamp(), requiredTimestamp);
+
+            // The updates may have been removed from every log, in which case only another replica's state has them.
+            // That takes too long to wait for, this query is answered with what we have.
+            gossipExecutor.submit(this::transferStateFromAnyReplica);
+        }
+
+        return caughtUp;
     }
 
-    private QueryResponse performQueryRequest(Request request) {
-        return new QueryResponse(valueTimestamp, value.getDetailsForMovie(request.getParameters()));
+    private QueryResponse performQueryRequest(Request request, ValueSnapshot snapshot) {
+        return new QueryResponse(snapshot.getValueTimestamp(),
+                snapshot.getValue().getDetailsForMovie(request.getParameters()));
+    }
+
+    /**
+     * Finds a snapshot that is up to date with a timestamp, catching up with the other replicas if we have to.
+     * @param requiredTimestamp timestamp of a query
+     * @return the snapshot to answer the query from
+     */
+    private ValueSnapshot snapshotFor(Timestamp requiredTimestamp) {
+        ValueSnapshot snapshot = this.snapshot;
+
+        if (requiredTimestamp.isAfter(snapshot.getValueTimestamp())) {
+            // We may have applied the updates and not published them yet, eg a query right after its own update
+            // whilst the apply loop is busy. Waiting for the loop is much cheaper than asking every other replica.
+            snapshot = applyLoop.call(this::publishSnapshot);
+        }
+
+        if (requiredTimestamp.isAfter(snapshot.getValueTimestamp())) {
+            snapshot = catchupValue(requiredTimestamp, snapshot);
+        }
+
+        return snapshot;
     }
 
     @Override
     public QueryResponse query(Request request) throws RemoteException {
         System.out.printf("Replica %d is processing a query request...\n", replicaId);
 
-        if (request.getTimestamp().isAfter(valueTimestamp)) {
-            catchupValue(request.getTimestamp());
-        }
-
-        return performQueryRequest(request);
+        return performQueryRequest(request, snapshotFor(request.getTimestamp()));
     }
 
     private void incrementReplicaTimestamp() {
@@ -245,9 +837,9 @@ public class Replica extends TimerTask implements ReplicaApi {
         Timestamp newFrontendTimestamp = request.getTimestamp().copy();
         newFrontendTimestamp.set(replicaId, replicaTimestamp.get(replicaId));
 
-        updateLog.add(replicaId, newFrontendTimestamp, request);
+        addToUpdateLog(new UpdateLogEntry(replicaId, newFrontendTimestamp, request));
 
-        executeStableUpdates();
+        executeUpdatesUntilValueTimestampStabilises();
 
         return MutationResponse.wasSuccessful(newFrontendTimestamp);
     }
@@ -258,35 +850,143 @@ public class Replica extends TimerTask implements ReplicaApi {
         return value.hasUserRankedMovie(parameters.getUserId(), parameters.getMovieId());
     }
 
+    @Override
+    public BatchQueryResponse queryBatch(BatchRequest batch) throws RemoteException {
+        System.out.printf("Replica %d is processing a batch of %d query requests...\n", replicaId, batch.size());
+
+        // The queries share a timestamp, so we catch up at most once for the whole batch.
+        ValueSnapshot snapshot = snapshotFor(batch.getTimestamp());
+
+        List<MovieDetails> movieDetails = new ArrayList<>(batch.size());
+        for (Request request : batch.getRequests()) {
+            RequestParameters parameters = request.getParameters();
+
+            movieDetails.add(snapshot.getValue().hasMovie(parameters.getMovieId())
+                    ? snapshot.getValue().getDetailsForMovie(parameters) : null);
+        }
+
+        return new BatchQueryResponse(snapshot.getValueTimestamp(), movieDetails);
+    }
+
+    /**
+     * Validates and schedules every request in a batch in a single task on the apply loop,
+     * then waits for the write ahead log once for all of them.
+     * @param batch of mutation requests
+     * @param isValid whether a request is allowed to change value
+     */
+    private BatchMutationResponse scheduleMutationBatch(BatchRequest batch, Predicate<Request> isValid)
+            throws RemoteException {
+        BatchMutationResponse response = applyLoop.call(() -> {
+            List<Request> requests = batch.getRequests();
+            boolean[] successes = new boolean[requests.size()];
+            Timestamp newFrontendTimestamp = batch.getTimestamp().copy();
+
+            for (int i = 0; i < requests.size(); ++i) {
+                Request request = requests.get(i);
+
+                if (isValid.test(request) && !haveProcessedRequest(request)) {
+                    newFrontendTimestamp.merge(scheduleMutationRequest(request).getTimestamp());
+                    successes[i] = true;
+                }
+            }
+
+            return new BatchMutationResponse(newFrontendTimestamp, successes);
+        });
+
+        awaitDurable();
+
+        return response;
+    }
+
+    @Override
+    public BatchMutationResponse updateBatch(BatchRequest batch) throws RemoteException {
+        System.out.printf("Replica %d is processing a batch of %d update requests...\n", replicaId, batch.size());
+
+        return scheduleMutationBatch(batch, this::isRequestAffectingExistingRating);
+    }
+
+    @Override
+    public BatchMutationResponse submitBatch(BatchRequest batch) throws RemoteException {
+        System.out.printf("Replica %d is processing a batch of %d submit requests...\n", replicaId, batch.size());
+
+        return scheduleMutationBatch(batch, request -> !isRequestAffectingExistingRating(request));
+    }
+
     @Override
     public MutationResponse update(Request request) throws RemoteException {
         System.out.printf("Replica %d is processing a update request...\n", replicaId);
 
-        if (!isRequestAffectingExistingRating(request)) { // only update existing ratings.
-            return MutationResponse.wasFailure(request.getTimestamp());
-        }
+        MutationResponse response = applyLoop.call(() -> {
+            if (!isRequestAffectingExistingRating(request)) { // only update existing ratings.
+                return MutationResponse.wasFailure(request.getTimestamp());
+            }
+
+            return scheduleMutationRequest(request);
+        });
 
-        return scheduleMutationRequest(request);
+        awaitDurable();
+
+        return response;
     }
 
     @Override
     public MutationResponse submit(Request request) throws RemoteException {
         System.out.printf("Replica %d is processing a submit request...\n", replicaId);
 
-        if (isRequestAffectingExistingRating(request)) { // can only submit non-existent ratings
-            return MutationResponse.wasFailure(request.getTimestamp());
-        }
+        MutationResponse response = applyLoop.call(() -> {
+            if (isRequestAffectingExistingRating(request)) { // can only submit non-existent ratings
+                return MutationResponse.wasFailure(request.getTimestamp());
+            }
+
+            return scheduleMutationRequest(request);
+        });
 
-        return scheduleMutationRequest(request);
+        awaitDurable();
+
+        return response;
     }
 
-    private void sendGossipMessage(int replicaNumber, GossipMessage message) {
-        try {
-            stubLoader.getReplicaStub(replicaNumber).processGossipMessage(message);
-        } catch (RemoteException | NotActiveException e) {
-            // In real life, perhaps we would count the number of fails
-            // and if it reached some threshold then we would then stop sending gossip messages to it.
+    /**
+     * Handles a replica acknowledging gossip that contained every entry up to a log position.
+     * @param otherReplicaId replica that was sent the gossip
+     * @param logPosition last position of the update log when the gossip was sent
+     * @param acknowledgement what it replied with
+     */
+    private void acknowledgeGossip(int otherReplicaId, long logPosition, GossipAcknowledgement acknowledgement) {
+        if (knownIncarnations[otherReplicaId] == 0) {
+            // First we've heard from it, the gossip was built with nothing assumed about it.
+            knownIncarnations[otherReplicaId] = acknowledgement.getIncarnation();
+        } else if (knownIncarnations[otherReplicaId] != acknowledgement.getIncarnation()) {
+            // It restarted before handling the gossip, which left out what it had before, so everything is resent.
+            learnIncarnation(otherReplicaId, acknowledgement.getIncarnation(), acknowledgement.getReplicaTimestamp());
+            return;
         }
+
+        // Acknowledgements can be handled after later gossip from the same replica,
+        // in which case it knows more than the acknowledgement says and nothing is moved backwards.
+        acknowledgedLogPositions[otherReplicaId] = Math.max(acknowledgedLogPositions[otherReplicaId], logPosition);
+        learnReplicaTimestamp(otherReplicaId, acknowledgement.getReplicaTimestamp());
+    }
+
+    private GossipAcknowledgement sendGossipMessage(int replicaNumber, GossipMessage message)
+            throws RemoteException, NotActiveException {
+        return stubLoader.getReplicaStub(replicaNumber).processGossipMessage(message);
+    }
+
+    /**
+     * Builds the gossip message for a replica from what it has acknowledged so far.
+     * @param receiverId replica the message is for
+     */
+    private GossipMessage createGossipMessage(int receiverId) {
+        Timestamp estimatedTimestamp = timestampTable.get(receiverId);
+
+        // Entries it may have received from someone else since it acknowledged are filtered out too.
+        // If there is nothing to send the message is just a heartbeat carrying our replica timestamp.
+        List<UpdateLogEntry> updatesReplicaNeeds = updateLog.entriesAddedAfter(
+                acknowledgedLogPositions[receiverId],
+                entry -> entry.getUpdateTimestamp().isAfter(estimatedTimestamp));
+
+        return new GossipMessage(replicaId, incarnation, updatesReplicaNeeds, replicaTimestamp.copy());
     }
 
     private void broadcastGossipMessages() {
@@ -295,22 +995,61 @@ public class Replica extends TimerTask implements ReplicaApi {
         }
         System.out.printf("Replica %d is gossipping\n", replicaId);
 
-        for (int replicaNumber = 0; replicaNumber < timestampTable.size(); ++replicaNumber) {
-            if (replicaNumber == replicaId) {
-                continue;
+        List<Integer> receivers = new ArrayList<>();
+        for (int replicaNumber = 0; replicaNumber < NUMBER_OF_REPLICAS; ++replicaNumber) {
+            if (replicaNumber != replicaId
+                    && (inFlightGossip[replicaNumber] == null || inFlightGossip[replicaNumber].isDone())) {
+                receivers.add(replicaNumber);
             }
+        }
+
+        // The messages are built by the apply loop so they see a consistent log and timestamp table.
+        Map<Integer, GossipMessage> messages = new HashMap<>();
+        long logPosition = applyLoop.call(() -> {
+            receivers.forEach(receiverId -> messages.put(receiverId, createGossipMessage(receiverId)));
 
-            Timestamp estimatedTimestamp = timestampTable.get(replicaNumber);
+            return updateLog.getLastPosition();
+        });
 
-            List<UpdateLogEntry> updatesReplicaNeeds = updateLog.anyEntryThat(
-                    entry -> entry.getUpdateTimestamp().isAfter(estimatedTimestamp));
+        // Acknowledgements are handled as they arrive rather than waited for, so a slow replica doesn't hold up the
+        // rest of the round or the next one.
+        for (Map.Entry<Integer, GossipMessage> message : messages.entrySet()) {
+            int receiverId = message.getKey();
 
-            sendGossipMessage(replicaNumber, new GossipMessage(replicaId, updatesReplicaNeeds, replicaTimestamp));
+            inFlightGossip[receiverId] = gossipExecutor.submit(() -> {
+                try {
+                    GossipAcknowledgement acknowledgement = sendGossipMessage(receiverId, message.getValue());
+
+                    applyLoop.submit(() -> {
+                        acknowledgeGossip(receiverId, logPosition, acknowledgement);
+                        return null;
+                    });
+                } catch (NotActiveException e) {
+                    // Nothing was acknowledged so the same entries are sent again next time.
+                } catch (RemoteException e) {
+                    // In real life, perhaps we would count the number of fails
+                    // and if it reached some threshold then we would then stop sending gossip messages to it.
+                    // Nothing was acknowledged so the same entries are sent again next time.
+                    stubLoader.refreshStatus(receiverId);
+                }
+            });
         }
     }
 
     @Override
     public void run() {
-        broadcastGossipMessages();
+        // This runs on a schedule which is cancelled if it throws, so no failure is allowed to stop gossip for good.
+        try {
+            randomlyChangeStatus();
+            broadcastGossipMessages();
+            checkpointIfDue();
+
+            if (status != ReplicaStatus.OFFLINE) {
+                transferStateIfValueStalled();
+            }
+        } catch (Exception e) {
+            System.out.printf("Replica %d failed a gossip round: %s\n", replicaId, e);
+            e.printStackTrace();
+        }
     }
 }
@@ -1,6 +1,9 @@
 package ds.replica;
 
 import ds.core.Timestamp;
+import ds.frontend.BatchMutationResponse;
+import ds.frontend.BatchQueryResponse;
+import ds.frontend.BatchRequest;
 import ds.frontend.MutationResponse;
 import ds.frontend.QueryResponse;
 import ds.frontend.Request;
@@ -12,7 +15,8 @@ import java.util.List;
 
 public interface ReplicaApi extends Remote {
     /**
-     * Query replica for the status, used only for simulation purposes
+     * Query replica for the status, used only for simulation purposes.
+     * Asking doesn't change the status, so it's safe to ask as often as needed.
      */
     ReplicaStatus requestStatus() throws RemoteException;
 
@@ -28,9 +32,10 @@ public interface ReplicaApi extends Remote {
      * Makes replica process the gossip message from another replica
      *
      * @param message what the replica will process
-     * @throws RemoteException
+     * @return acknowledgement of every entry in the message
+     * @throws RemoteException if the replica is offline
      */
-    void processGossipMessage(GossipMessage message) throws RemoteException;
+    GossipAcknowledgement processGossipMessage(GossipMessage message) throws RemoteException;
 
 
     /**
@@ -39,13 +44,60 @@ public interface ReplicaApi extends Remote {
      *
      * @param timestamp to compare against each update log entry
      * @return all updates that are before timestamp
-     * @throws RemoteException
+     * @throws RemoteException if the replica is offline
      */
     List<UpdateLogEntry> findAllRequiredUpdates(Timestamp timestamp) throws RemoteException;
 
+    /**
+     * Prepares a copy of the replica's whole state for a replica that is too far behind to catch up
+     * from update logs, eg because the entries it needs have been removed from every log.
+     *
+     * @return description of the state, which is then fetched with fetchStateChunk
+     * @throws RemoteException if the replica is offline, or couldn't prepare its state
+     */
+    StateTransfer beginStateTransfer() throws RemoteException;
+
+    /**
+     * Fetches part of the state prepared by beginStateTransfer. The transfer is forgotten once its last chunk is fetched.
+     *
+     * @param transferId id of the transfer
+     * @param offset     of the first byte to fetch, from 0 up to the size of the state
+     * @param length     maximum number of bytes to fetch, at least 1 and at most the replica's chunk size
+     * @return the bytes from offset, fewer than length at the end of the state
+     * @throws RemoteException if the transfer is unknown or has expired, or offset or length are out of range
+     */
+    byte[] fetchStateChunk(long transferId, int offset, int length) throws RemoteException;
+
     QueryResponse query(Request request) throws RemoteException;
 
     MutationResponse update(Request request) throws RemoteException;
 
     MutationResponse submit(Request request) throws RemoteException;
+
+    /**
+     * Answers every query in a batch from the same state of the replica.
+     *
+     * @param batch of query requests
+     * @return details for each query in order, null for any whose movie doesn't exist
+     * @throws RemoteException
+     */
+    BatchQueryResponse queryBatch(BatchRequest batch) throws RemoteException;
+
+    /**
+     * Validates and logs every update in a batch in one go, each succeeds or fails on its own.
+     *
+     * @param batch of update requests
+     * @return whether each update was a success
+     * @throws RemoteException
+     */
+    BatchMutationResponse updateBatch(BatchRequest batch) throws RemoteException;
+
+    /**
+     * Validates and logs every submission in a batch in one go, each succeeds or fails on its own.
+     *
+     * @param batch of submit requests
+     * @return whether each submission was a success
+     * @throws RemoteException
+     */
+    BatchMutationResponse submitBatch(BatchRequest batch) throws RemoteException;
 }
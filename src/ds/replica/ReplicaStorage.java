@@ -0,0 +1,389 @@
+package ds.replica;
+
+import ds.core.Timestamp;
+import ds.replica.updatelog.UpdateLogEntry;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static ds.core.NetworkSimulator.NUMBER_OF_REPLICAS;
+import static ds.core.Varints.readVarInt;
+import static ds.core.Varints.writeVarInt;
+
+/**
+ * Keeps a replica's state on disk, as a checkpoint and the write ahead log written since, and recovers it
+ * after a restart.
+ * <p>
+ * The write ahead log is split into numbered segments, a new one is started at each checkpoint.
+ * Entries are recorded as they are added to the update log, and then whether each was executed or skipped,
+ * so recovery executes them in the same order as before rather than deciding again.
+ */
+class ReplicaStorage {
+    /**
+     * Write ahead log record of an entry being added to the update log.
+     */
+    private static final byte ENTRY_RECORD = 1;
+
+    /**
+     * Write ahead log record of an entry being executed, by its creator and sequence number.
+     * Record type 2 identified the entry by its request uid, which isn't unique to an entry, and is no longer written.
+     */
+    private static final byte EXECUTED_RECORD = 3;
+
+    /**
+     * Write ahead log record of an entry being skipped, as the same request was executed through another entry.
+     */
+    private static final byte SKIPPED_RECORD = 4;
+
+    /**
+     * Timestamps in the write ahead log are written relative to this.
+     */
+    private static final Timestamp ZERO_TIMESTAMP = new Timestamp(NUMBER_OF_REPLICAS);
+
+    /**
+     * How often the state is checkpointed, so only the write ahead log written since needs replaying
+     * when the replica restarts.
+     */
+    private static final long CHECKPOINT_PERIOD = 60 * 1000; // milliseconds
+
+    private static final String CHECKPOINT_FILE = "checkpoint.bin";
+
+    private static final Pattern LOG_SEGMENT_FILE = Pattern.compile("update-(\\d+)\\.wal");
+
+    /**
+     * How a replica rebuilds its state from what is read back whilst recovering.
+     * Each is called in the same order as the change was originally made.
+     */
+    interface RecoveryTarget {
+        /**
+         * Replaces the state with a checkpoint, restoring its log entries without scheduling them.
+         */
+        void loadCheckpoint(Checkpoint checkpoint);
+
+        /**
+         * Adds an entry to the update log without scheduling it.
+         */
+        void restoreEntry(UpdateLogEntry entry);
+
+        void applyEntry(UpdateLogEntry entry);
+
+        void skipDuplicateEntry(UpdateLogEntry entry);
+
+        /**
+         * Schedules an entry that was never executed or skipped.
+         */
+        void schedulePendingEntry(UpdateLogEntry entry);
+    }
+
+    private final int replicaId;
+
+    private final File storageDirectory;
+
+    /**
+     * Log the changes are appended to, null until recovery has finished.
+     */
+    private volatile WriteAheadLog writeAheadLog;
+
+    /**
+     * Number of the write ahead log segment being appended to.
+     */
+    private long logSegment;
+
+    /**
+     * Writes checkpoints in the background, so neither queries nor the apply loop wait for them.
+     */
+    private final ExecutorService checkpointExecutor;
+
+    private Future<?> checkpointInProgress;
+
+    private long lastCheckpointTime = System.currentTimeMillis();
+
+    /**
+     * Entries read back from the checkpoint and write ahead log whilst recovering, see entryKey.
+     */
+    private Map<Long, UpdateLogEntry> recoveredEntries;
+
+    /**
+     * Recovered entries that are yet to be executed, in the order they were added.
+     */
+    private Map<Long, UpdateLogEntry> recoveredPendingEntries;
+
+    ReplicaStorage(int replicaId, File storageDirectory) {
+        this.replicaId = replicaId;
+        this.storageDirectory = storageDirectory;
+
+        checkpointExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "replica-" + replicaId + "-checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private File logSegmentFile(long segment) {
+        return new File(storageDirectory, "update-" + segment + ".wal");
+    }
+
+    /**
+     * @return numbers of the write ahead log segments in the storage directory, in ascending order
+     */
+    private List<Long> findLogSegments() {
+        List<Long> segments = new ArrayList<>();
+        String[] fileNames = storageDirectory.list();
+
+        for (String fileName : fileNames != null ? fileNames : new String[0]) {
+            Matcher matcher = LOG_SEGMENT_FILE.matcher(fileName);
+
+            if (matcher.matches()) {
+                segments.add(Long.parseLong(matcher.group(1)));
+            }
+        }
+
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private void deleteLogSegmentsBefore(long segment) {
+        for (long oldSegment : findLogSegments()) {
+            if (oldSegment < segment && !logSegmentFile(oldSegment).delete()) {
+                System.out.printf("Replica %d couldn't delete old write ahead log segment %d\n", replicaId, oldSegment);
+            }
+        }
+    }
+
+    /**
+     * An entry is identified by the replica that created it and that replica's sequence number for it,
+     * unlike its request uid which is shared by every replica's entry for the request.
+     */
+    static long entryKey(int creatorId, int sequenceNumber) {
+        return ((long) creatorId << 32) | (sequenceNumber & 0xffffffffL);
+    }
+
+    static long entryKey(UpdateLogEntry entry) {
+        return entryKey(entry.getReplicaId(), entry.getUpdateTimestamp().get(entry.getReplicaId()));
+    }
+
+    private static void writeEntryKey(DataOutput out, UpdateLogEntry entry) throws IOException {
+        writeVarInt(out, entry.getReplicaId());
+        writeVarInt(out, entry.getUpdateTimestamp().get(entry.getReplicaId()));
+    }
+
+    /**
+     * Reads which entry a write ahead log record executed, it's no longer pending.
+     */
+    private UpdateLogEntry readExecutedEntry(DataInput in) throws IOException {
+        long key = entryKey(readVarInt(in), readVarInt(in));
+        UpdateLogEntry entry = recoveredEntries.get(key);
+
+        if (entry == null) {
+            throw new IOException("write ahead log executes an entry it never added");
+        }
+
+        if (recoveredPendingEntries.remove(key) == null) {
+            throw new IOException("write ahead log executes an entry twice");
+        }
+
+        return entry;
+    }
+
+    private void loadCheckpoint(Checkpoint checkpoint, RecoveryTarget target) {
+        target.loadCheckpoint(checkpoint);
+        logSegment = checkpoint.getNextLogSegment();
+
+        for (UpdateLogEntry entry : checkpoint.getUpdateLogEntries()) {
+            recoveredEntries.put(entryKey(entry), entry);
+        }
+
+        // Whether an entry was executed is recorded rather than worked out again from executedOperations,
+        // which may have forgotten its request since.
+        for (UpdateLogEntry entry : checkpoint.getPendingEntries()) {
+            recoveredEntries.put(entryKey(entry), entry);
+            recoveredPendingEntries.put(entryKey(entry), entry);
+        }
+    }
+
+    /**
+     * Rebuilds the state from the latest checkpoint, if there is one, and then replays the write ahead log
+     * written since. Nothing is appended to the log until this has finished.
+     * @param target the replica whose state is rebuilt, starting from an empty value
+     * @throws RemoteException if the checkpoint or log can't be read
+     */
+    void recover(RecoveryTarget target) throws RemoteException {
+        recoveredEntries = new HashMap<>();
+        recoveredPendingEntries = new LinkedHashMap<>();
+
+        try {
+            if (!storageDirectory.isDirectory() && !storageDirectory.mkdirs()) {
+                throw new IOException("couldn't create " + storageDirectory);
+            }
+
+            File checkpointFile = new File(storageDirectory, CHECKPOINT_FILE);
+            if (checkpointFile.exists()) {
+                loadCheckpoint(Checkpoint.readFrom(checkpointFile), target);
+            }
+
+            // Segments from before the checkpoint are left over if it was written but they weren't deleted.
+            deleteLogSegmentsBefore(logSegment);
+
+            WriteAheadLog log = null;
+
+            for (long segment : findLogSegments()) {
+                if (log != null) {
+                    log.close();
+                }
+
+                log = new WriteAheadLog(logSegmentFile(segment));
+                log.replay((type, in) -> replayRecord(type, in, target));
+                logSegment = segment;
+            }
+
+            if (log == null) {
+                log = new WriteAheadLog(logSegmentFile(logSegment));
+                log.replay((type, in) -> {
+                });
+            }
+
+            writeAheadLog = log; // Assigned afterwards so replaying doesn't append the records again.
+        } catch (IOException | RuntimeException e) {
+            throw new RemoteException("replica " + replicaId + " couldn't recover from " + storageDirectory, e);
+        }
+
+        recoveredPendingEntries.values().forEach(target::schedulePendingEntry);
+        recoveredEntries = null;
+        recoveredPendingEntries = null;
+    }
+
+    private void replayRecord(byte type, DataInput in, RecoveryTarget target) throws IOException {
+        switch (type) {
+            case ENTRY_RECORD:
+                UpdateLogEntry entry = UpdateLogEntry.readFrom(in, ZERO_TIMESTAMP);
+
+                // Kept in the log as well, since other replicas may not have seen it yet.
+                target.restoreEntry(entry);
+                recoveredEntries.put(entryKey(entry), entry);
+                recoveredPendingEntries.put(entryKey(entry), entry);
+                break;
+            case EXECUTED_RECORD:
+                // Done just as it was before the restart, rather than deciding again from executedOperations.
+                target.applyEntry(readExecutedEntry(in));
+                break;
+            case SKIPPED_RECORD:
+                target.skipDuplicateEntry(readExecutedEntry(in));
+                break;
+            default:
+                throw new IOException("unknown write ahead log record " + type);
+        }
+    }
+
+    /**
+     * @return number of the write ahead log segment being appended to, where a checkpoint taken now continues from
+     */
+    long getLogSegment() {
+        return logSegment;
+    }
+
+    /**
+     * Starts a new write ahead log segment, for a checkpoint of the state as it is now to continue from.
+     * Run by the apply loop, so nothing is appended whilst the segments are switched.
+     * @return number of the new segment
+     */
+    long startNextLogSegment() {
+        WriteAheadLog nextLog = null;
+
+        try {
+            nextLog = new WriteAheadLog(logSegmentFile(logSegment + 1));
+            nextLog.replay((type, in) -> {
+            });
+
+            // A mutation waits for its records on whichever segment is current after it's applied,
+            // so the previous segment must be on disk before the next one takes its place.
+            writeAheadLog.close();
+
+            writeAheadLog = nextLog;
+            return ++logSegment;
+        } catch (IOException e) {
+            if (nextLog != null) {
+                try {
+                    nextLog.close();
+                } catch (IOException closeFailure) {
+                    e.addSuppressed(closeFailure);
+                }
+            }
+
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes a checkpoint and deletes the write ahead log segments it replaces.
+     * @param takeCheckpoint starts the next segment and captures the state it continues from
+     */
+    private void writeCheckpoint(Supplier<Checkpoint> takeCheckpoint) {
+        try {
+            Checkpoint checkpoint = takeCheckpoint.get();
+
+            checkpoint.writeTo(new File(storageDirectory, CHECKPOINT_FILE));
+            deleteLogSegmentsBefore(checkpoint.getNextLogSegment());
+        } catch (IOException | UncheckedIOException e) {
+            System.out.printf("Replica %d failed to write a checkpoint: %s\n", replicaId, e.getMessage());
+        }
+    }
+
+    /**
+     * Writes a checkpoint in the background.
+     */
+    void checkpointInBackground(Supplier<Checkpoint> takeCheckpoint) {
+        checkpointExecutor.submit(() -> writeCheckpoint(takeCheckpoint));
+    }
+
+    /**
+     * Writes a checkpoint in the background if the last was long enough ago and has finished.
+     */
+    void checkpointIfDue(Supplier<Checkpoint> takeCheckpoint) {
+        if (System.currentTimeMillis() - lastCheckpointTime < CHECKPOINT_PERIOD
+                || (checkpointInProgress != null && !checkpointInProgress.isDone())) {
+            return;
+        }
+
+        lastCheckpointTime = System.currentTimeMillis();
+        checkpointInProgress = checkpointExecutor.submit(() -> writeCheckpoint(takeCheckpoint));
+    }
+
+    void logEntryAdded(UpdateLogEntry entry) {
+        writeAheadLog.append(ENTRY_RECORD, out -> entry.writeTo(out, ZERO_TIMESTAMP));
+    }
+
+    void logEntryExecuted(UpdateLogEntry entry) {
+        writeAheadLog.append(EXECUTED_RECORD, out -> writeEntryKey(out, entry));
+    }
+
+    void logEntrySkipped(UpdateLogEntry entry) {
+        writeAheadLog.append(SKIPPED_RECORD, out -> writeEntryKey(out, entry));
+    }
+
+    /**
+     * Waits until the changes logged so far are on disk, so they won't be lost if the replica restarts.
+     */
+    void awaitDurable() throws RemoteException {
+        try {
+            writeAheadLog.sync();
+        } catch (UncheckedIOException e) {
+            throw new RemoteException("replica " + replicaId + " couldn't write its write ahead log", e.getCause());
+        }
+    }
+}
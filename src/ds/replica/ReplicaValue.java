@@ -3,37 +3,114 @@ package ds.replica;
 import ds.client.RequestParameters;
 import ds.movies.*;
 
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * The movie ratings held by a replica. Movies and the initial ratings come from the shared base dataset,
+ * the replica only keeps its own copy of the ranking counters of movies it has changed.
+ * <p>
+ * Only the replica's apply loop changes the value, queries read immutable snapshots of it.
+ * The changed counters are kept in a persistent map so a snapshot shares them instead of copying them.
+ * A counter is copied before it's changed if a snapshot might be reading it,
+ * so a counter is copied at most once between snapshots however often it's changed.
+ */
 public class ReplicaValue {
-    private Map<Integer, Movie> movies;
-    private Map<Integer, RankingCounter> rankings;
+    private BaseDataset baseDataset;
+
+    /**
+     * Ranking counters of the movies this replica has changed, which take precedence over the base dataset.
+     */
+    private PersistentIntMap<RankingCounter> changedRankings;
+
+    /**
+     * Movies whose counter in changedRankings was copied since the last snapshot, so no snapshot can see it.
+     */
+    private Set<Integer> unsharedRankings = new HashSet<>();
 
     ReplicaValue() {
-        movies = new HashMap<>();
-        rankings = new HashMap<>();
+        this(BaseDataset.get(), new PersistentIntMap<>());
+    }
+
+    private ReplicaValue(BaseDataset baseDataset, PersistentIntMap<RankingCounter> changedRankings) {
+        this.baseDataset = baseDataset;
+        this.changedRankings = changedRankings;
+    }
+
+    /**
+     * Takes a snapshot of the value in constant time, which shares the counters with this value
+     * until they are next changed. The snapshot must only be read.
+     */
+    ReplicaValue snapshot() {
+        unsharedRankings.clear();
+
+        return new ReplicaValue(baseDataset, changedRankings.snapshot());
+    }
+
+    private RankingCounter getRankings(int movieId) {
+        RankingCounter rankings = changedRankings.get(movieId);
+
+        return rankings != null ? rankings : baseDataset.getRankings(movieId);
+    }
+
+    /**
+     * Returns the ranking counter for a movie that this replica can change,
+     * copying it if it's from the base dataset or a snapshot may be reading it.
+     */
+    private RankingCounter getRankingsForChange(int movieId) {
+        if (unsharedRankings.add(movieId)) {
+            changedRankings.put(movieId, getRankings(movieId).copy());
+        }
+
+        return changedRankings.get(movieId);
+    }
+
+    /**
+     * Calls consumer with the id and ranking counter of every movie this replica has changed.
+     * The counters must only be read.
+     */
+    void forEachChangedMovie(BiConsumer<Integer, RankingCounter> consumer) {
+        for (Movie movie : baseDataset.getMovies()) {
+            RankingCounter rankings = changedRankings.get(movie.getId());
+
+            if (rankings != null) {
+                consumer.accept(movie.getId(), rankings);
+            }
+        }
+    }
+
+    /**
+     * Restores the ranking counter of a movie this replica had changed, eg read from a checkpoint.
+     * The value takes ownership of rankings.
+     */
+    void restoreRankings(int movieId, RankingCounter rankings) {
+        changedRankings.put(movieId, rankings);
+        unsharedRankings.add(movieId);
+    }
 
-        loadMoviesIntoMemory();
-        loadMovieRankings();
+    boolean hasMovie(int movieId) {
+        return baseDataset.hasMovie(movieId);
     }
 
     MovieDetails getDetailsForMovie(RequestParameters parameters) {
         int userId = parameters.getUserId();
 
-        if (!movies.containsKey(parameters.getMovieId())) {
+        if (!baseDataset.hasMovie(parameters.getMovieId())) {
             throw new IllegalArgumentException("that movie id doesn't exist");
         }
 
-        Movie movie = movies.get(parameters.getMovieId());
-        RankingCounter ranking = rankings.get(parameters.getMovieId());
+        Movie movie = baseDataset.getMovie(parameters.getMovieId());
+        RankingCounter ranking = getRankings(parameters.getMovieId());
 
-        return userId != -1 ? new MovieDetails(movie, ranking, userId) : new MovieDetails(movie, ranking);
+        boolean includeAllRankings = parameters.isIncludingAllRankings();
+
+        return userId != -1 ? new MovieDetails(movie, ranking, userId, includeAllRankings)
+                : new MovieDetails(movie, ranking, includeAllRankings);
     }
 
     private void setRanking(int userId, int movieId, float ranking) {
-        rankings.get(movieId)
+        getRankingsForChange(movieId)
                 .setRanking(userId, ranking);
     }
 
@@ -42,38 +119,16 @@ public class ReplicaValue {
     }
 
     public boolean updateRanking(RequestParameters parameters) {
-        return rankings.get(parameters.getMovieId())
+        if (!getRankings(parameters.getMovieId()).userHasRanked(parameters.getUserId())) {
+            return false;
+        }
+
+        return getRankingsForChange(parameters.getMovieId())
                 .updateRanking(parameters.getUserId(), parameters.getRanking());
     }
 
     boolean hasUserRankedMovie(int userId, int movieId) {
-        return movies.containsKey(movieId)
-                && rankings.get(movieId).userHasRanked(userId);
-    }
-
-    private void loadMoviesIntoMemory() {
-        MovieReader movieReader = new MovieReader();
-
-        while (movieReader.hasNextMovie()) {
-            Movie movie = movieReader.readMovie();
-
-            movies.put(movie.getId(), movie);
-            rankings.put(movie.getId(), new RankingCounter());
-        }
+        return baseDataset.hasMovie(movieId)
+                && getRankings(movieId).userHasRanked(userId);
     }
-
-    private void loadMovieRankings() {
-        CSVReader reader = new CSVReader("./movie-data/ratings.csv");
-
-        while (reader.hasNextLine()) {
-            List<String> attributes = reader.readAttributes();
-
-            int userId = Integer.parseInt(attributes.get(0));
-            int movieId = Integer.parseInt(attributes.get(1));
-            float ranking = Float.parseFloat(attributes.get(2)); // format string is "4.0"
-
-            setRanking(userId, movieId, ranking);
-        }
-    }
-
 }
@@ -0,0 +1,40 @@
+package ds.replica;
+
+import ds.core.Timestamp;
+
+import java.io.Serializable;
+
+/**
+ * Describes the state a replica has prepared to send to another, which is fetched in chunks by its id.
+ */
+public class StateTransfer implements Serializable {
+    private final long transferId;
+
+    private final int size;
+
+    private final Timestamp valueTimestamp;
+
+    StateTransfer(long transferId, int size, Timestamp valueTimestamp) {
+        this.transferId = transferId;
+        this.size = size;
+        this.valueTimestamp = valueTimestamp;
+    }
+
+    public long getTransferId() {
+        return transferId;
+    }
+
+    /**
+     * @return number of bytes in the transferred state
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return value timestamp of the transferred state
+     */
+    public Timestamp getValueTimestamp() {
+        return valueTimestamp;
+    }
+}
@@ -0,0 +1,213 @@
+package ds.replica;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves a replica's whole state to another replica that is too far behind to catch up from the update logs.
+ * <p>
+ * The sender writes the state to a temporary file, which the receiver fetches a chunk at a time into a temporary
+ * file of its own, so neither holds all of it in memory. A transfer that is never finished expires.
+ */
+class StateTransfers {
+    /**
+     * Transferred state is fetched in chunks of at most this many bytes, so no one call has to carry all of it.
+     */
+    static final int CHUNK_SIZE = 1 << 20;
+
+    /**
+     * How long state prepared for a transfer that is never fetched is kept.
+     */
+    private static final long EXPIRY = 60 * 1000; // milliseconds
+
+    /**
+     * State prepared for a transfer, kept in a temporary file so it's read a chunk at a time rather than held in memory.
+     */
+    private static class OutgoingStateTransfer {
+        private final File file;
+        private final FileChannel channel;
+        private final int size;
+        private final long preparedAt;
+
+        private OutgoingStateTransfer(File file, FileChannel channel, int size, long preparedAt) {
+            this.file = file;
+            this.channel = channel;
+            this.size = size;
+            this.preparedAt = preparedAt;
+        }
+
+        private boolean hasExpired(long now) {
+            return preparedAt < now - EXPIRY;
+        }
+
+        private void discard() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Only ever read, so nothing is lost.
+            }
+
+            deleteTemporaryFile(file);
+        }
+    }
+
+    private final int replicaId;
+
+    /**
+     * State this replica has prepared for other replicas to fetch, by transfer id.
+     */
+    private final Map<Long, OutgoingStateTransfer> outgoingStateTransfers = new ConcurrentHashMap<>();
+
+    private final AtomicLong lastStateTransferId = new AtomicLong();
+
+    StateTransfers(int replicaId) {
+        this.replicaId = replicaId;
+    }
+
+    private static void deleteTemporaryFile(File file) {
+        if (!file.delete()) {
+            System.out.printf("Couldn't delete temporary file %s\n", file);
+        }
+    }
+
+    private void discard(long transferId) {
+        OutgoingStateTransfer transfer = outgoingStateTransfers.remove(transferId);
+
+        if (transfer != null) {
+            transfer.discard();
+        }
+    }
+
+    /**
+     * Prepares state for another replica to fetch, discarding any earlier transfers that have expired.
+     * @param state captured state of this replica
+     * @return description of the transfer
+     * @throws RemoteException if the state couldn't be written
+     */
+    StateTransfer prepare(Checkpoint state) throws RemoteException {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Long, OutgoingStateTransfer> transfer : outgoingStateTransfers.entrySet()) {
+            if (transfer.getValue().hasExpired(now)) {
+                discard(transfer.getKey());
+            }
+        }
+
+        File stateFile = null;
+        try {
+            stateFile = File.createTempFile("replica-" + replicaId + "-state-", ".bin");
+
+            try (FileOutputStream out = new FileOutputStream(stateFile)) {
+                state.writeTo(out);
+            }
+
+            if (stateFile.length() > Integer.MAX_VALUE) {
+                throw new IOException("state of " + stateFile.length() + " bytes is too big to transfer");
+            }
+
+            int size = (int) stateFile.length();
+            FileChannel channel = FileChannel.open(stateFile.toPath(), StandardOpenOption.READ);
+
+            long transferId = lastStateTransferId.incrementAndGet();
+            outgoingStateTransfers.put(transferId, new OutgoingStateTransfer(stateFile, channel, size, now));
+
+            return new StateTransfer(transferId, size, state.getValueTimestamp());
+        } catch (IOException e) {
+            if (stateFile != null) {
+                deleteTemporaryFile(stateFile);
+            }
+
+            throw new RemoteException("replica " + replicaId + " couldn't prepare its state", e);
+        }
+    }
+
+    /**
+     * Reads part of a prepared state. The transfer is discarded once its last chunk is read.
+     * @throws RemoteException if the transfer is unknown or has expired, or offset or length are out of range
+     * @see ReplicaApi#fetchStateChunk
+     */
+    byte[] fetchChunk(long transferId, int offset, int length) throws RemoteException {
+        OutgoingStateTransfer transfer = outgoingStateTransfers.get(transferId);
+
+        if (transfer == null) {
+            throw new RemoteException("replica " + replicaId + " has no state transfer " + transferId
+                    + ", it may have finished or expired");
+        }
+
+        if (transfer.hasExpired(System.currentTimeMillis())) {
+            discard(transferId);
+            throw new RemoteException("state transfer " + transferId + " from replica " + replicaId + " has expired");
+        }
+
+        if (offset < 0 || offset > transfer.size) {
+            throw new RemoteException("offset " + offset + " is outside state transfer " + transferId
+                    + " of " + transfer.size + " bytes");
+        }
+
+        if (length <= 0 || length > CHUNK_SIZE) {
+            throw new RemoteException("chunk length " + length + " isn't between 1 and " + CHUNK_SIZE);
+        }
+
+        ByteBuffer chunk = ByteBuffer.allocate(Math.min(length, transfer.size - offset));
+        try {
+            while (chunk.hasRemaining()) {
+                if (transfer.channel.read(chunk, (long) offset + chunk.position()) < 0) {
+                    throw new EOFException("state transfer file ended early");
+                }
+            }
+        } catch (IOException e) {
+            discard(transferId);
+            throw new RemoteException("replica " + replicaId + " couldn't read state transfer " + transferId, e);
+        }
+
+        if (offset + chunk.capacity() == transfer.size) {
+            discard(transferId);
+        }
+
+        return chunk.array();
+    }
+
+    /**
+     * Fetches the chunks of another replica's state transfer into a temporary file, and reads the state from it.
+     * @param replica replica that prepared the transfer
+     * @param transfer returned by its beginStateTransfer
+     * @return the transferred state
+     */
+    Checkpoint fetchFrom(ReplicaApi replica, StateTransfer transfer) throws IOException {
+        File stateFile = File.createTempFile("replica-" + replicaId + "-transfer-", ".bin");
+
+        try {
+            try (FileChannel out = FileChannel.open(stateFile.toPath(), StandardOpenOption.WRITE)) {
+                int received = 0;
+
+                while (received < transfer.getSize()) {
+                    byte[] chunk = replica.fetchStateChunk(transfer.getTransferId(), received,
+                            Math.min(CHUNK_SIZE, transfer.getSize() - received));
+
+                    if (chunk.length == 0) {
+                        throw new IOException("state transfer ended early");
+                    }
+
+                    ByteBuffer buffer = ByteBuffer.wrap(chunk);
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+
+                    received += chunk.length;
+                }
+            }
+
+            return Checkpoint.readFrom(stateFile);
+        } finally {
+            deleteTemporaryFile(stateFile);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package ds.replica;
+
+import ds.core.Timestamp;
+
+/**
+ * Immutable version of a replica's value tagged with the value timestamp it reflects.
+ * Queries read from the latest version so they never see an update half applied, and a version
+ * stays readable for as long as a query holds it however far the replica moves on.
+ */
+class ValueSnapshot {
+    private final Timestamp valueTimestamp;
+
+    private final ReplicaValue value;
+
+    ValueSnapshot(Timestamp valueTimestamp, ReplicaValue value) {
+        this.valueTimestamp = valueTimestamp;
+        this.value = value;
+    }
+
+    /**
+     * @return the value timestamp, which must not be changed
+     */
+    Timestamp getValueTimestamp() {
+        return valueTimestamp;
+    }
+
+    /**
+     * @return the value, which must only be read
+     */
+    ReplicaValue getValue() {
+        return value;
+    }
+}
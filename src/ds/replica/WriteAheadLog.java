@@ -0,0 +1,272 @@
+package ds.replica;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Append only log of the changes a replica has made, which is replayed to recover its state after a restart.
+ * <p>
+ * Records are appended to an in memory buffer and written to disk by a flusher thread, which forces
+ * everything appended since its last write with a single fsync. Callers wait for their records with sync,
+ * so under load many records share one fsync (group commit) instead of each paying for its own.
+ * <p>
+ * Each record is framed as its length, a CRC32 of its contents, its type and then its payload.
+ * A record that was only partially written when the replica stopped fails its check and is discarded.
+ */
+class WriteAheadLog implements Closeable {
+    /**
+     * The length and checksum in front of each record, the type is counted as part of the record.
+     */
+    private static final int HEADER_LENGTH = 2 * Integer.BYTES;
+
+    @FunctionalInterface
+    interface RecordWriter {
+        void writeTo(DataOutput out) throws IOException;
+    }
+
+    @FunctionalInterface
+    interface RecordReader {
+        void read(byte type, DataInput in) throws IOException;
+    }
+
+    private final File file;
+
+    private final FileChannel channel;
+
+    /**
+     * Records appended but not yet handed to the flusher.
+     */
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+    /**
+     * Scratch buffer the payload of a record is written to before it's framed.
+     */
+    private final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+
+    private final CRC32 checksum = new CRC32();
+
+    private long appendedPosition;
+
+    private long durablePosition;
+
+    private IOException failure;
+
+    private boolean closed;
+
+    private Thread flusher;
+
+    WriteAheadLog(File file) throws IOException {
+        this.file = file;
+
+        boolean isNew = !file.exists();
+        channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        // Forcing the file doesn't make its directory entry durable, without this a new log could vanish on a crash.
+        if (isNew) {
+            syncDirectory(file.getAbsoluteFile().getParentFile());
+        }
+    }
+
+    /**
+     * Forces a directory's entries to disk, so files created or renamed in it survive a crash.
+     */
+    static void syncDirectory(File directory) throws IOException {
+        try (FileChannel directoryChannel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            directoryChannel.force(true);
+        } catch (AccessDeniedException e) {
+            // Directories can't be opened on some platforms, eg Windows, where the entries are durable already.
+        }
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Reads every complete record in the log, in the order they were appended, and then starts accepting appends.
+     * Anything after the last complete record is cut off.
+     */
+    void replay(RecordReader reader) throws IOException {
+        long validLength = 0;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            byte[] contents = new byte[256];
+
+            while (true) {
+                int length;
+                int expectedChecksum;
+
+                try {
+                    length = in.readInt();
+                    expectedChecksum = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+
+                if (length < 1) {
+                    break;
+                }
+
+                if (contents.length < length) {
+                    contents = new byte[Math.max(length, 2 * contents.length)];
+                }
+
+                try {
+                    in.readFully(contents, 0, length);
+                } catch (EOFException e) {
+                    break; // torn write
+                }
+
+                checksum.reset();
+                checksum.update(contents, 0, length);
+                if ((int) checksum.getValue() != expectedChecksum) {
+                    break;
+                }
+
+                reader.read(contents[0],
+                        new DataInputStream(new ByteArrayInputStream(contents, 1, length - 1)));
+                validLength += HEADER_LENGTH + length;
+            }
+        }
+
+        channel.truncate(validLength);
+        channel.position(validLength);
+
+        appendedPosition = durablePosition = validLength;
+
+        flusher = new Thread(this::flush, "write-ahead-log-" + file.getName());
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Appends a record, which is durable once a later sync returns.
+     */
+    synchronized void append(byte type, RecordWriter record) {
+        payload.reset();
+        payload.write(type);
+
+        try {
+            record.writeTo(new DataOutputStream(payload));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // only writes to memory
+        }
+
+        checksum.reset();
+        checksum.update(payload.toByteArray());
+
+        DataOutputStream out = new DataOutputStream(pending);
+        try {
+            out.writeInt(payload.size());
+            out.writeInt((int) checksum.getValue());
+            payload.writeTo(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        appendedPosition += HEADER_LENGTH + payload.size();
+        notifyAll();
+    }
+
+    /**
+     * Waits until every record appended so far is on disk.
+     * @throws UncheckedIOException if the log could not be written
+     */
+    synchronized void sync() {
+        long target = appendedPosition;
+        boolean interrupted = false;
+
+        while (durablePosition < target && failure == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (durablePosition < target) {
+            throw new UncheckedIOException("write ahead log " + file + " failed", failure);
+        }
+    }
+
+    private void flush() {
+        while (true) {
+            byte[] batch;
+            long batchEnd;
+
+            synchronized (this) {
+                while (pending.size() == 0 && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+
+                if (pending.size() == 0) {
+                    return; // closed
+                }
+
+                batch = pending.toByteArray();
+                batchEnd = appendedPosition;
+                pending = new ByteArrayOutputStream(batch.length);
+            }
+
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(batch);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                }
+                return;
+            }
+
+            synchronized (this) {
+                durablePosition = batchEnd;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Writes out any records still pending and closes the log.
+     * @throws IOException if the log couldn't be written, in which case records appended to it may be lost
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+
+        if (flusher != null) {
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        channel.close();
+
+        synchronized (this) {
+            if (failure != null) {
+                throw new IOException("write ahead log " + file + " failed", failure);
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package ds.replica.updatelog;
+
+import ds.core.Timestamp;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Entries that have not yet been applied to the value, indexed by what they are waiting on.
+ * An entry is stable once its request timestamp is <= the value timestamp, so an entry that is not
+ * stable is parked on the first component of the value timestamp that is behind. When that component
+ * advances only the entries parked on it are looked at again, rather than the whole update log.
+ */
+class PendingUpdates {
+    /**
+     * Entries that have just been added and not yet compared against the value timestamp.
+     */
+    private List<UpdateLogEntry> arrivals = new ArrayList<>();
+
+    /**
+     * waiting.get(i) holds entries blocked on component i, smallest required value first.
+     */
+    private List<PriorityQueue<UpdateLogEntry>> waiting = new ArrayList<>();
+
+    /**
+     * Entries that can be applied, in causal order.
+     */
+    private PriorityQueue<UpdateLogEntry> stable = new PriorityQueue<>();
+
+    private static int requiredValue(UpdateLogEntry entry, int component) {
+        return entry.getUpdateRequest().getTimestamp().get(component);
+    }
+
+    void schedule(UpdateLogEntry entry) {
+        arrivals.add(entry);
+    }
+
+    private PriorityQueue<UpdateLogEntry> waitingOn(int component) {
+        while (waiting.size() <= component) {
+            int i = waiting.size();
+            waiting.add(new PriorityQueue<>(Comparator.comparingInt(entry -> requiredValue(entry, i))));
+        }
+
+        return waiting.get(component);
+    }
+
+    /**
+     * Parks the entry on the first component it is waiting on, or marks it stable if there are none.
+     */
+    private void classify(UpdateLogEntry entry, Timestamp valueTimestamp) {
+        for (int i = 0; i < valueTimestamp.getDimension(); ++i) {
+            if (requiredValue(entry, i) > valueTimestamp.get(i)) {
+                waitingOn(i).add(entry);
+                return;
+            }
+        }
+
+        stable.add(entry);
+    }
+
+    /**
+     * Moves every entry whose dependencies are satisfied by valueTimestamp into the stable queue.
+     */
+    private void wake(Timestamp valueTimestamp) {
+        arrivals.forEach(entry -> classify(entry, valueTimestamp));
+        arrivals.clear();
+
+        for (int i = 0; i < waiting.size(); ++i) {
+            PriorityQueue<UpdateLogEntry> blocked = waiting.get(i);
+
+            while (!blocked.isEmpty() && requiredValue(blocked.peek(), i) <= valueTimestamp.get(i)) {
+                classify(blocked.poll(), valueTimestamp);
+            }
+        }
+    }
+
+    /**
+     * @return every entry that is yet to be polled, in no particular order
+     */
+    List<UpdateLogEntry> entries() {
+        List<UpdateLogEntry> entries = new ArrayList<>(arrivals);
+        waiting.forEach(entries::addAll);
+        entries.addAll(stable);
+
+        return entries;
+    }
+
+    /**
+     * @param valueTimestamp
+     * @return the next entry which is stable compared with valueTimestamp, or null if there is none
+     */
+    UpdateLogEntry pollStable(Timestamp valueTimestamp) {
+        wake(valueTimestamp);
+
+        return stable.poll();
+    }
+}
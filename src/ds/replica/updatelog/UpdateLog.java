@@ -3,13 +3,12 @@ package ds.replica.updatelog;
 import ds.core.Timestamp;
 import ds.frontend.Request;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.PriorityQueue;
+import java.util.*;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
+import static ds.core.NetworkSimulator.NUMBER_OF_REPLICAS;
+
 /**
  * The update log component of a replica contains all updates known by the replica
  * that have not been seen by all replicas within the network.
@@ -17,36 +16,49 @@ import java.util.stream.Collectors;
 public class UpdateLog {
     private List<UpdateLogEntry> entries;
 
-    public UpdateLog() {
-        entries = Collections.synchronizedList(new ArrayList<>());
-    }
+    /**
+     * For the request of every entry in the log, a bit set of the replicas that created an entry for it,
+     * so duplicates are found without scanning the log. The frontend sends each mutation to several replicas,
+     * which each create their own entry for it, and we need all of them to know the request is reflected
+     * in each of their timestamps. Guarded by the same lock as entries.
+     */
+    private Map<UUID, Integer> entryCreators;
 
     /**
-     * Checks whether any update within the log is stable compared to a value timestamp
-     *
-     * @param valueTimestamp
-     * @return any update is stable compared with valueTimestamp
+     * Entries that are yet to be returned by pollStableEntry. Guarded by the same lock as entries.
      */
-    public boolean hasStableEntry(Timestamp valueTimestamp) {
-        return entries.stream().anyMatch(entry ->
-                entry.getUpdateRequest().isStable(valueTimestamp));
+    private PendingUpdates pendingUpdates;
+
+    /**
+     * Position given to the most recently added entry. Entries are kept in order of position.
+     */
+    private long lastPosition;
+
+    static {
+        if (NUMBER_OF_REPLICAS > Integer.SIZE) {
+            throw new IllegalStateException("entryCreators holds a bit per replica, so at most "
+                    + Integer.SIZE + " replicas are supported");
+        }
+    }
+
+    public UpdateLog() {
+        entries = Collections.synchronizedList(new ArrayList<>());
+        entryCreators = new HashMap<>();
+        pendingUpdates = new PendingUpdates();
     }
 
     /**
-     * Returns all entries that are considered stable compared to a valueTimestamp
+     * Returns the next entry that is considered stable compared to a valueTimestamp, in causal order.
+     * Every entry added to the log is returned at most once, even after it has been removed as outdated.
      *
      * @param valueTimestamp
-     * @return all entries within log that are stable
+     * @return a stable entry that hasn't been returned before, or null if there is none
      */
-    public PriorityQueue<UpdateLogEntry> getStableEntries(Timestamp valueTimestamp) {
+    public UpdateLogEntry pollStableEntry(Timestamp valueTimestamp) {
         // Entry is stable <=> entry.request.timestamp <= valueTimestamp (value has caught up to update)
-        PriorityQueue<UpdateLogEntry> stableEntries = new PriorityQueue<>();
-
-        entries.stream()
-                .filter(entry -> entry.getUpdateRequest().isStable(valueTimestamp))
-                .forEach(stableEntries::add);
-
-        return stableEntries;
+        synchronized (entries) {
+            return pendingUpdates.pollStable(valueTimestamp);
+        }
     }
 
     /**
@@ -66,33 +78,139 @@ public class UpdateLog {
     }
 
     public void removeOutdatedEntries(List<Timestamp> timestampTable) {
-        entries.removeIf(entry -> isEntryOutdated(timestampTable, entry));
+        synchronized (entries) {
+            entries.removeIf(entry -> {
+                if (!isEntryOutdated(timestampTable, entry)) {
+                    return false;
+                }
+
+                int creator = 1 << entry.getReplicaId();
+                entryCreators.computeIfPresent(entry.getUpdateRequest().getUid(),
+                        (uid, creators) -> (creators & ~creator) == 0 ? null : creators & ~creator);
+                return true;
+            });
+        }
+    }
+
+    private boolean logContainsEntry(UpdateLogEntry entry) {
+        int creators = entryCreators.getOrDefault(entry.getUpdateRequest().getUid(), 0);
+
+        return (creators & (1 << entry.getReplicaId())) != 0;
+    }
+
+    public boolean add(int replicaId, Timestamp updateTimestamp, Request request) {
+        return add(new UpdateLogEntry(replicaId, updateTimestamp, request));
+    }
+
+    /**
+     * @return whether the entry was added, ie the log didn't already contain the same replica's entry for its request
+     */
+    public boolean add(UpdateLogEntry entry) {
+        synchronized (entries) {
+            if (!restore(entry)) {
+                return false;
+            }
+
+            pendingUpdates.schedule(entry);
+
+            return true;
+        }
     }
 
-    private boolean logContainsEntryWithTimestamp(Request request) {
-        return entries.stream()
-                .anyMatch(entry -> entry.getUpdateRequest().getUid().equals(request.getUid()));
+    /**
+     * Adds an entry without scheduling it to be returned by pollStableEntry. For rebuilding the log after a restart,
+     * when which entries are yet to be executed isn't known until the write ahead log has been replayed.
+     *
+     * @return whether the entry was added, ie the log didn't already contain the same replica's entry for its request
+     * @see #schedule
+     */
+    public boolean restore(UpdateLogEntry entry) {
+        synchronized (entries) {
+            if (logContainsEntry(entry)) {
+                return false;
+            }
+
+            entryCreators.merge(entry.getUpdateRequest().getUid(), 1 << entry.getReplicaId(), (a, b) -> a | b);
+            entry.setLogPosition(++lastPosition);
+            entries.add(entry);
+
+            return true;
+        }
     }
 
-    public void add(int replicaId, Timestamp updateTimestamp, Request request) {
-        if (logContainsEntryWithTimestamp(request)) {
-            return;
+    /**
+     * Schedules a restored entry that is yet to be executed to be returned by pollStableEntry.
+     * It needn't be in the log, it may have been removed as outdated before the restart.
+     */
+    public void schedule(UpdateLogEntry entry) {
+        synchronized (entries) {
+            pendingUpdates.schedule(entry);
         }
+    }
 
-        entries.add(new UpdateLogEntry(replicaId, updateTimestamp, request));
+    /**
+     * Replaces every entry yet to be returned by pollStableEntry, eg once value has been replaced by another
+     * replica's. They needn't be in the log.
+     */
+    public void replacePendingEntries(Collection<UpdateLogEntry> pendingEntries) {
+        synchronized (entries) {
+            pendingUpdates = new PendingUpdates();
+            pendingEntries.forEach(pendingUpdates::schedule);
+        }
     }
 
-    public void add(UpdateLogEntry entry) {
-        if (logContainsEntryWithTimestamp(entry.getUpdateRequest())) {
-            return;
+    /**
+     * @return every entry yet to be returned by pollStableEntry, including any removed from the log as outdated
+     */
+    public List<UpdateLogEntry> pendingEntries() {
+        synchronized (entries) {
+            return pendingUpdates.entries();
+        }
+    }
+
+    /**
+     * @return position of the most recently added entry, or 0 if nothing has been added
+     */
+    public long getLastPosition() {
+        synchronized (entries) {
+            return lastPosition;
         }
+    }
 
-        entries.add(entry);
+    /**
+     * Returns the entries added after a position that are still in the log,
+     * without looking at the entries added before it.
+     *
+     * @param position        a value previously returned by getLastPosition
+     * @param acceptPredicate entries must also satisfy this
+     * @return accepted entries added after position, in the order they were added
+     */
+    public List<UpdateLogEntry> entriesAddedAfter(long position, Predicate<UpdateLogEntry> acceptPredicate) {
+        synchronized (entries) {
+            // Binary search for the first entry added after position.
+            int low = 0;
+            int high = entries.size();
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+
+                if (entries.get(middle).getLogPosition() <= position) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+
+            return entries.subList(low, entries.size()).stream()
+                    .filter(acceptPredicate)
+                    .collect(Collectors.toList());
+        }
     }
 
     public List<UpdateLogEntry> anyEntryThat(Predicate<UpdateLogEntry> acceptPredicate) {
-        return entries.stream()
-                .filter(acceptPredicate)
-                .collect(Collectors.toList());
+        synchronized (entries) {
+            return entries.stream()
+                    .filter(acceptPredicate)
+                    .collect(Collectors.toList());
+        }
     }
 }
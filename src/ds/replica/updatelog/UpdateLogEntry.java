@@ -3,8 +3,14 @@ package ds.replica.updatelog;
 import ds.core.Timestamp;
 import ds.frontend.Request;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 
+import static ds.core.Varints.readVarInt;
+import static ds.core.Varints.writeVarInt;
+
 public class UpdateLogEntry implements Comparable<UpdateLogEntry>, Serializable {
 
     /**
@@ -18,6 +24,11 @@ public class UpdateLogEntry implements Comparable<UpdateLogEntry>, Serializable
     private int replicaId;
     private Request updateRequest;
 
+    /**
+     * Position of the entry within the update log of the replica holding it, local to that replica.
+     */
+    private transient long logPosition;
+
     public UpdateLogEntry(int replicaId, Timestamp updateTimestamp, Request updateRequest) {
         this.replicaId = replicaId;
         this.updateTimestamp = updateTimestamp;
@@ -36,6 +47,31 @@ public class UpdateLogEntry implements Comparable<UpdateLogEntry>, Serializable
         return updateRequest;
     }
 
+    long getLogPosition() {
+        return logPosition;
+    }
+
+    void setLogPosition(long logPosition) {
+        this.logPosition = logPosition;
+    }
+
+    /**
+     * Writes the entry in the binary wire format. The update timestamp is written relative to base,
+     * and the request timestamp relative to the update timestamp since they differ in one component.
+     */
+    public void writeTo(DataOutput out, Timestamp base) throws IOException {
+        writeVarInt(out, replicaId);
+        updateTimestamp.writeTo(out, base);
+        updateRequest.writeTo(out, updateTimestamp);
+    }
+
+    public static UpdateLogEntry readFrom(DataInput in, Timestamp base) throws IOException {
+        int replicaId = readVarInt(in);
+        Timestamp updateTimestamp = Timestamp.readFrom(in, base);
+
+        return new UpdateLogEntry(replicaId, updateTimestamp, Request.readFrom(in, updateTimestamp));
+    }
+
     @Override
     public int compareTo(UpdateLogEntry entry) {
         return updateTimestamp.compareTo(entry.getUpdateTimestamp());
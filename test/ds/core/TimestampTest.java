@@ -0,0 +1,35 @@
+package ds.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+
+import static ds.core.NetworkSimulator.NUMBER_OF_REPLICAS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class TimestampTest {
+    private static DataInput inputOf(ByteArrayOutputStream bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    @Test
+    void writtenTimestampIsReadBack() throws IOException {
+        Timestamp timestamp = new Timestamp(NUMBER_OF_REPLICAS);
+        timestamp.set(0, 3);
+        timestamp.set(NUMBER_OF_REPLICAS - 1, 300);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        timestamp.writeTo(new DataOutputStream(bytes));
+
+        assertEquals(Timestamp.Ordering.EQUAL, Timestamp.readFrom(inputOf(bytes)).compare(timestamp));
+    }
+
+    @Test
+    void timestampOfAnotherDimensionIsRejected() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Varints.writeVarInt(new DataOutputStream(bytes), Integer.MAX_VALUE);
+
+        assertThrows(StreamCorruptedException.class, () -> Timestamp.readFrom(inputOf(bytes)));
+    }
+}
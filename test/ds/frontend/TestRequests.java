@@ -0,0 +1,27 @@
+package ds.frontend;
+
+import ds.client.RequestParameters;
+import ds.core.Timestamp;
+
+/**
+ * Builds the requests a frontend would send, for tests that talk to replicas directly.
+ */
+public class TestRequests {
+    private TestRequests() {
+    }
+
+    /**
+     * @param recipients bit set of the replicas the mutation is sent to
+     */
+    public static Request mutation(RequestParameters parameters, Timestamp timestamp, int recipients) {
+        return new Request(parameters, timestamp, recipients);
+    }
+
+    public static Request query(RequestParameters parameters, Timestamp timestamp) {
+        return new Request(parameters, timestamp);
+    }
+
+    public static float userRanking(QueryResponse response) {
+        return response.getMovieDetails().getUserRanking();
+    }
+}
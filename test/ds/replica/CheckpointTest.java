@@ -0,0 +1,46 @@
+package ds.replica;
+
+import ds.client.RequestParameters;
+import ds.core.Timestamp;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static ds.core.NetworkSimulator.NUMBER_OF_REPLICAS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CheckpointTest {
+    private static final int MOVIE_ID = 1;
+
+    private static final int USER_ID = 100_001;
+
+    @Test
+    void onlyChangedRankingsAreWrittenAndReadBackOverTheBaseDataset() throws IOException {
+        ReplicaValue value = new ReplicaValue();
+        value.setRanking(new RequestParameters(USER_ID, MOVIE_ID, 4.5f));
+
+        File file = File.createTempFile("checkpoint", ".bin");
+        try {
+            new Checkpoint(0, new Timestamp(NUMBER_OF_REPLICAS), new Timestamp(NUMBER_OF_REPLICAS), value,
+                    new ExecutedOperations(Replica.EXECUTED_OPERATION_EXPIRY, Replica.EXECUTED_OPERATION_MAX_AGE),
+                    Collections.emptyList(), Collections.emptyList())
+                    .writeTo(file);
+
+            ReplicaValue readValue = Checkpoint.readFrom(file).getValue();
+
+            List<Integer> changedMovieIds = new ArrayList<>();
+            readValue.forEachChangedMovie((movieId, rankings) -> changedMovieIds.add(movieId));
+
+            assertEquals(List.of(MOVIE_ID), changedMovieIds);
+            assertTrue(readValue.hasUserRankedMovie(USER_ID, MOVIE_ID));
+            assertEquals(4.5f, readValue.getDetailsForMovie(new RequestParameters(USER_ID, MOVIE_ID)).getUserRanking());
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+}
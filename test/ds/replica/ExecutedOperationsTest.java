@@ -0,0 +1,67 @@
+package ds.replica;
+
+import ds.core.Timestamp;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.UUID;
+
+import static ds.core.NetworkSimulator.NUMBER_OF_REPLICAS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ExecutedOperationsTest {
+    private static final long HOUR = 60 * 60 * 1000; // milliseconds
+
+    private static Timestamp timestamp(int... components) {
+        Timestamp timestamp = new Timestamp(NUMBER_OF_REPLICAS);
+        for (int i = 0; i < components.length; ++i) {
+            timestamp.set(i, components[i]);
+        }
+
+        return timestamp;
+    }
+
+    /**
+     * Timestamp table in which replica 2 is offline and has never seen anything.
+     */
+    private static List<Timestamp> tableWithOfflineReplica() {
+        return List.of(timestamp(1, 0, 0), timestamp(1, 0, 0), timestamp(0, 0, 0));
+    }
+
+    @Test
+    void operationSeenByEveryReplicaIsRetired() {
+        ExecutedOperations executedOperations = new ExecutedOperations(HOUR, HOUR);
+        UUID uid = UUID.randomUUID();
+        executedOperations.add(uid, 0b001, 0, 1);
+
+        executedOperations.retireSeenBy(List.of(timestamp(1, 0, 0), timestamp(1, 0, 0), timestamp(1, 0, 0)));
+
+        assertFalse(executedOperations.contains(uid));
+    }
+
+    @Test
+    void operationAnOfflineReplicaHasntSeenIsKeptUntilTheMaximumAge() {
+        ExecutedOperations executedOperations = new ExecutedOperations(HOUR, HOUR);
+        UUID uid = UUID.randomUUID();
+        executedOperations.add(uid, 0b001, 0, 1);
+
+        executedOperations.retireSeenBy(tableWithOfflineReplica());
+
+        assertTrue(executedOperations.contains(uid));
+    }
+
+    @Test
+    void operationAnOfflineReplicaHasntSeenIsRetiredAfterTheMaximumAge() throws InterruptedException {
+        ExecutedOperations executedOperations = new ExecutedOperations(HOUR, 10);
+        UUID uid = UUID.randomUUID();
+        executedOperations.add(uid, 0b001, 0, 1);
+
+        Thread.sleep(50);
+        executedOperations.retireSeenBy(tableWithOfflineReplica());
+
+        assertFalse(executedOperations.contains(uid));
+        assertEquals(0, executedOperations.size());
+    }
+}
@@ -0,0 +1,89 @@
+package ds.replica;
+
+import ds.client.RequestParameters;
+import ds.core.Timestamp;
+import ds.frontend.Request;
+import ds.frontend.TestRequests;
+import ds.replica.updatelog.UpdateLogEntry;
+import org.junit.jupiter.api.Test;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static ds.core.NetworkSimulator.NUMBER_OF_REPLICAS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReplicaInstallStateTest {
+    private static final int MOVIE_ID = 1;
+
+    private static final int USER_ID = 100_001;
+
+    private static Timestamp timestamp(int... components) {
+        Timestamp timestamp = new Timestamp(NUMBER_OF_REPLICAS);
+        for (int i = 0; i < components.length; ++i) {
+            timestamp.set(i, components[i]);
+        }
+
+        return timestamp;
+    }
+
+    /**
+     * @param timestamp the answer must be at least this up to date
+     */
+    private static float userRanking(Replica replica, Timestamp timestamp) throws RemoteException {
+        return TestRequests.userRanking(replica.query(
+                TestRequests.query(new RequestParameters(USER_ID, MOVIE_ID), timestamp)));
+    }
+
+    /**
+     * State of another replica that has executed replica 1's first two entries and forgotten their uids.
+     */
+    private static Checkpoint transferredState(float ranking) {
+        ReplicaValue value = new ReplicaValue();
+        value.setRanking(new RequestParameters(USER_ID, MOVIE_ID, ranking));
+
+        return new Checkpoint(0, timestamp(0, 2, 1), timestamp(0, 2, 1), value,
+                new ExecutedOperations(Replica.EXECUTED_OPERATION_EXPIRY, Replica.EXECUTED_OPERATION_MAX_AGE),
+                new ArrayList<>(), new ArrayList<>());
+    }
+
+    private static UpdateLogEntry entryFromReplica1(float ranking, Timestamp requestTimestamp,
+                                                    Timestamp updateTimestamp) {
+        Request request = TestRequests.mutation(new RequestParameters(USER_ID, MOVIE_ID, ranking),
+                requestTimestamp, 0b010);
+
+        return new UpdateLogEntry(1, updateTimestamp, request);
+    }
+
+    @Test
+    void outdatedPendingEntryReflectedInStateIsNotExecutedAgain() throws RemoteException {
+        Replica replica = new Replica(0);
+
+        // It depends on an update from replica 2 we haven't seen, so it stays pending.
+        UpdateLogEntry entry = entryFromReplica1(3.0f, timestamp(0, 0, 1), timestamp(0, 1, 1));
+        replica.processGossipMessage(new GossipMessage(1, 1, new ArrayList<>(List.of(entry)), timestamp(0, 1, 0)));
+
+        // Once every replica has seen it, it's removed from the log as outdated.
+        replica.processGossipMessage(new GossipMessage(2, 2, new ArrayList<>(), timestamp(0, 1, 0)));
+        assertTrue(replica.findAllRequiredUpdates(timestamp(1, 2, 2)).isEmpty());
+
+        // The transferred value has a newer rating from replica 1, which the old entry mustn't overwrite.
+        assertTrue(replica.install(transferredState(1.0f)));
+
+        assertEquals(1.0f, userRanking(replica, timestamp(0, 2, 1)));
+    }
+
+    @Test
+    void pendingEntryNewerThanStateIsExecutedOnTopOfIt() throws RemoteException {
+        Replica replica = new Replica(0);
+
+        UpdateLogEntry entry = entryFromReplica1(5.0f, timestamp(0, 2, 1), timestamp(0, 3, 1));
+        replica.processGossipMessage(new GossipMessage(1, 1, new ArrayList<>(List.of(entry)), timestamp(0, 3, 0)));
+
+        assertTrue(replica.install(transferredState(1.0f)));
+
+        assertEquals(5.0f, userRanking(replica, timestamp(0, 3, 1)));
+    }
+}